@@ -0,0 +1,156 @@
+package consensusTest;
+
+import distributedConsensus.LatencyRecorder;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Start/kill LeaderCandidates of a LeaderElectionTester at a configurable rate
+ * Decisions are taken on the calling thread, while LeaderCandidates are started concurrently by a pool of
+ * worker threads, so that slow starts (Kafka connections) do not limit the churn rate.
+ * Keeps at least n*0.8 and at most n*1.2 LeaderCandidates, counting the starts which are still in progress.
+ */
+public class ChurnDriver {
+
+    private static final Logger LOGGER = Logger.getLogger(ChurnDriver.class);
+
+    private final LeaderElectionTester leaderElectionTester;
+    private final int maxProcessCount;
+    private final double actionsPerSecond;
+    private final ExecutorService workers;
+    private final AtomicInteger pendingStarts;
+    private final AtomicLong starts, kills, skippedKills;
+    private final LatencyRecorder startLatency;
+
+    /**
+     * Constructor
+     *
+     * @param leaderElectionTester tester which starts and kills LeaderCandidates
+     * @param maxProcessCount n, number of LeaderCandidates is kept between n*0.8 and n*1.2
+     * @param actionsPerSecond start/kill actions per second, 0 keeps the random 1-10s (initial) and
+     *                         1-4s (churn) waits between actions
+     * @param workerThreads number of threads starting LeaderCandidates concurrently
+     */
+    public ChurnDriver(LeaderElectionTester leaderElectionTester, int maxProcessCount, double actionsPerSecond,
+                       int workerThreads){
+        this.leaderElectionTester = leaderElectionTester;
+        this.maxProcessCount = maxProcessCount;
+        this.actionsPerSecond = actionsPerSecond;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.pendingStarts = new AtomicInteger();
+        this.starts = new AtomicLong();
+        this.kills = new AtomicLong();
+        this.skippedKills = new AtomicLong();
+        this.startLatency = new LatencyRecorder("start latency");
+    }
+
+    private int processCount(){
+        return leaderElectionTester.getActiveProcessCount() + pendingStarts.get();
+    }
+
+    private void startProcess(){
+        pendingStarts.incrementAndGet();
+        workers.execute(() -> {
+            long startTime = System.nanoTime();
+            try {
+                leaderElectionTester.startNewProcess();
+                starts.incrementAndGet();
+            } catch (Exception exception) {
+                LOGGER.error("Failed to start a process :", exception);
+            } finally {
+                pendingStarts.decrementAndGet();
+                startLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            }
+        });
+    }
+
+    private void killProcess(){
+        if (leaderElectionTester.killProcess()){
+            kills.incrementAndGet();
+        }
+        else{
+            skippedKills.incrementAndGet();
+        }
+    }
+
+    private long nextWaitNanos(int minSeconds, int maxSeconds){
+        if (actionsPerSecond > 0){
+            return (long) (TimeUnit.SECONDS.toNanos(1) / actionsPerSecond);
+        }
+        return TimeUnit.SECONDS.toNanos(ThreadLocalRandom.current().nextInt(minSeconds, maxSeconds + 1));
+    }
+
+    private static void parkUntil(long deadline){
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0){
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Start n*0.8 LeaderCandidates, randomly start/kill LeaderCandidates for testTime, then kill all the
+     * remaining LeaderCandidates and log a summary
+     *
+     * @param testTime duration of the random start/kill phase in milliseconds
+     */
+    public void run(long testTime){
+        long nextAction = System.nanoTime();
+        for (int i = 0; i < maxProcessCount*0.8; i++){
+            startProcess();
+            nextAction += nextWaitNanos(1, 10);
+            parkUntil(nextAction);
+        }
+
+        long churnStart = System.nanoTime();
+        long churnEnd = churnStart + TimeUnit.MILLISECONDS.toNanos(testTime);
+        long churnActions = 0;
+        while (System.nanoTime() <= churnEnd) {
+            churnActions++;
+            double random = ThreadLocalRandom.current().nextDouble();
+            if (random > 0.5) {
+                if (processCount() < maxProcessCount*1.2) {
+                    startProcess();
+                }
+                else{
+                    killProcess();
+                }
+            }
+            else {
+                if (processCount() > maxProcessCount*0.8){
+                    killProcess();
+                }
+                else{
+                    startProcess();
+                }
+            }
+            LOGGER.info("Number of leader candidates alive : " + leaderElectionTester.getActiveProcessCount());
+            nextAction += nextWaitNanos(1, 4);
+            parkUntil(Math.min(nextAction, churnEnd + 1));
+        }
+        double churnSeconds = (System.nanoTime() - churnStart) / 1e9;
+        LOGGER.info("TestTime is out. Will kill all the threads and finish the test run");
+
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (leaderElectionTester.getActiveProcessCount() > 0){
+            leaderElectionTester.killProcess(null);
+        }
+
+        LOGGER.info("Churn summary : starts=" + starts.get() + ", kills=" + kills.get() + ", skipped kills of the " +
+                "immortal process=" + skippedKills.get() + ", throughput=" +
+                String.format("%.2f", churnActions / churnSeconds) + " actions/s");
+        LOGGER.info(startLatency.summary());
+        LOGGER.info(leaderElectionTester.getFailoverLatency().summary());
+    }
+}
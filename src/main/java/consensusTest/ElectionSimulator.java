@@ -0,0 +1,539 @@
+package consensusTest;
+
+import distributedConsensus.LatencyRecorder;
+import leaderElection.RoundTracker;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Deterministic discrete event simulation of leader election
+ * Runs the LeaderCandidate state machine (NativeCandidate) on a virtual clock over an in-memory log
+ * (SimulatedLog), with a seeded random number generator, injectable message delays and node crashes, and
+ * the start/kill churn policy of LeaderElectionTester. With setRealCandidates, real LeaderCandidates
+ * (SimulatedCandidate) run on a SimulatedScheduler instead, as a slower cross-check of the native state machine.
+ * Checks safety (at most one leader per round) and failover latency SLO automatically.
+ */
+public class ElectionSimulator {
+
+    private static final Logger LOGGER = Logger.getLogger(ElectionSimulator.class);
+
+    /**
+     * Message delays of the simulated Kafka service
+     */
+    public interface NetworkModel {
+        /**
+         * @param random seeded random number generator of the simulation
+         * @return delay between writing a record and appending it to the log (ms)
+         */
+        long produceDelay(Random random);
+
+        /**
+         * @param random seeded random number generator of the simulation
+         * @return delay between appending a record and a candidate consuming it (ms)
+         */
+        long consumeDelay(Random random);
+    }
+
+    /**
+     * Network with uniformly distributed produce and consume delays
+     */
+    public static class UniformNetwork implements NetworkModel {
+        private final long minDelay, maxDelay;
+
+        public UniformNetwork(long minDelay, long maxDelay){
+            this.minDelay = minDelay;
+            this.maxDelay = maxDelay;
+        }
+
+        @Override
+        public long produceDelay(Random random) {
+            return minDelay + (long) (random.nextDouble() * (maxDelay - minDelay));
+        }
+
+        @Override
+        public long consumeDelay(Random random) {
+            return minDelay + (long) (random.nextDouble() * (maxDelay - minDelay));
+        }
+    }
+
+    private static final class SimulationEvent implements Comparable<SimulationEvent> {
+        private final long time, sequence;
+        private final Runnable action;
+
+        private SimulationEvent(long time, long sequence, Runnable action){
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(SimulationEvent other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class RoundStats {
+        private String leader;
+        private int heartbeatSenders;
+        private long votes;
+    }
+
+    private final Random random;
+    private final NetworkModel network;
+    private final int maxProcessCount;
+    private final SimulatedLog log;
+    private final SimulatedScheduler scheduler;
+    private final PriorityQueue<SimulationEvent> events;
+    private final List<SimulatedNode> activeProcesses;
+    private final HashMap<String, Long> lastAppendTimes;
+    private final TreeMap<Integer, RoundStats> rounds;
+    private final LatencyRecorder failoverLatency;
+    private long now, endTime, sequence, processedEvents, failoverSlo, sloViolations, startedProcesses;
+    private int nodeCount, observedRound, protocolFailures, safetyViolations;
+    private String immortalProcess;
+    private double leaderKillRate;
+    private long followerStallInterval, followerStalls, suspicions, liveLeaderRounds;
+    private boolean realCandidates;
+    private static final long FOLLOWER_STALL = 3000;
+
+    //CURRENT LEADER AND PENDING FAILOVER
+    private SimulatedNode currentLeader;
+    private int currentLeaderRound;
+    private long leaderDeathTime;
+
+    /**
+     * Constructor
+     *
+     * @param seed seed of the random number generator, same seed gives the same execution
+     * @param maxProcessCount n, the number of leader candidates is kept between 0.8n and 1.2n
+     * @param network message delays of the simulated Kafka service
+     */
+    public ElectionSimulator(long seed, int maxProcessCount, NetworkModel network){
+        this.random = new Random(seed);
+        this.network = network;
+        this.maxProcessCount = maxProcessCount;
+        this.log = new SimulatedLog();
+        this.scheduler = new SimulatedScheduler(this);
+        this.events = new PriorityQueue<>();
+        this.activeProcesses = new ArrayList<>();
+        this.lastAppendTimes = new HashMap<>();
+        this.rounds = new TreeMap<>();
+        this.failoverLatency = new LatencyRecorder("failover latency");
+        this.failoverSlo = 5000;
+        this.leaderDeathTime = -1;
+        this.observedRound = -1;
+        this.endTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Set the failover latency SLO, time between the death of a leader and electing the next leader
+     *
+     * @param failoverSlo SLO in milliseconds
+     */
+    public void setFailoverSlo(long failoverSlo) {
+        this.failoverSlo = failoverSlo;
+    }
+
+    /**
+     * Set the probability of a churn kill to target the current leader instead of a random candidate
+     *
+     * @param leaderKillRate probability in the range [0, 1], 0 keeps the uniform choice of LeaderElectionTester
+     */
+    public void setLeaderKillRate(double leaderKillRate) {
+        this.leaderKillRate = leaderKillRate;
+    }
+
+    /**
+     * Run real LeaderCandidates, with the election Javascript of LeaderElectionTester, instead of NativeCandidates
+     * Real candidates evaluate Javascript and hand their threads over to each other, a few rounds are simulated
+     * per second instead of thousands
+     *
+     * @param realCandidates whether to run real LeaderCandidates
+     */
+    public void setRealCandidates(boolean realCandidates) {
+        this.realCandidates = realCandidates;
+    }
+
+    /**
+     * Stall the consumer of a random follower for 3s (longer than the heartbeat timeout) every interval
+     *
+     * @param followerStallInterval interval between stalls in milliseconds, 0 disables stalls
+     */
+    public void setFollowerStallInterval(long followerStallInterval) {
+        this.followerStallInterval = followerStallInterval;
+    }
+
+    private void stallFollower(){
+        if (now >= endTime){
+            return;
+        }
+        List<SimulatedNode> followers = new ArrayList<>();
+        for (SimulatedNode candidate : activeProcesses){
+            if (candidate != currentLeader){
+                followers.add(candidate);
+            }
+        }
+        if (!followers.isEmpty()){
+            followers.get(random.nextInt(followers.size())).stallConsumer(now + FOLLOWER_STALL);
+            followerStalls++;
+        }
+        schedule(now + followerStallInterval, this::stallFollower);
+    }
+
+    /**
+     * Inject a crash of the current leader at a given virtual time
+     *
+     * @param time virtual time in milliseconds
+     */
+    public void crashLeaderAt(long time){
+        schedule(time, () -> {
+            if (currentLeader != null && currentLeader.isAlive()){
+                kill(currentLeader);
+            }
+        });
+    }
+
+    /**
+     * Inject a crash of a random candidate at a given virtual time
+     *
+     * @param time virtual time in milliseconds
+     */
+    public void crashRandomAt(long time){
+        schedule(time, () -> {
+            if (!activeProcesses.isEmpty()){
+                kill(activeProcesses.get(random.nextInt(activeProcesses.size())));
+            }
+        });
+    }
+
+    long now() {
+        return now;
+    }
+
+    long consumeDelay() {
+        return network.consumeDelay(random);
+    }
+
+    void schedule(long time, Runnable action){
+        events.add(new SimulationEvent(time, sequence++, action));
+    }
+
+    /**
+     * Write a record through the simulated producer of a candidate
+     * Records of the same writer are appended in the order they are written
+     *
+     * @param writer candidate writing the record
+     * @param key key of the record
+     * @param value record, null for a tombstone
+     */
+    void write(SimulatedNode writer, final String key, final String value){
+        Long lastAppendTime = lastAppendTimes.get(writer.getNodeId());
+        long appendTime = Math.max(lastAppendTime == null ? 0 : lastAppendTime, now + network.produceDelay(random));
+        lastAppendTimes.put(writer.getNodeId(), appendTime);
+        schedule(appendTime, () -> append(key, value));
+    }
+
+    private void append(String key, String value){
+        int offset = log.append(now, key, value);
+        if (value != null){
+            observe(value);
+        }
+        for (SimulatedNode candidate : activeProcesses){
+            candidate.onAppend(offset);
+        }
+    }
+
+    /**
+     * Track the immortal process the same way LeaderElectionTester.read() does, and count votes per round
+     *
+     * @param value appended record
+     */
+    private void observe(String value){
+        if (value.startsWith("CHECK,")){
+            return;
+        }
+        String[] recordContent = value.split(",", 2);
+        String recordMessage = recordContent[1];
+        if (recordMessage.startsWith(RoundTracker.SUSPECT_PREFIX)){
+            suspicions++;
+        }
+        if (RoundTracker.isSignal(recordMessage)){
+            return;
+        }
+        int recordNumber = Integer.parseInt(recordContent[0]);
+        if (recordMessage.equals(RoundTracker.TIMEOUT_RECORD)){
+            if (recordNumber == observedRound){
+                this.immortalProcess = null;
+            }
+            return;
+        }
+        roundStats(recordNumber).votes++;
+        if (recordNumber > observedRound){
+            if (currentLeader != null && currentLeader.isAlive() && currentLeaderRound == recordNumber - 1){
+                //A FOLLOWER OPENED A NEW ROUND WHILE THE LEADER WAS STILL RUNNING
+                liveLeaderRounds++;
+            }
+            this.observedRound = recordNumber;
+            this.immortalProcess = RoundTracker.parseVoteClient(recordMessage);
+        }
+    }
+
+    private RoundStats roundStats(int roundNumber){
+        RoundStats stats = rounds.get(roundNumber);
+        if (stats == null){
+            stats = new RoundStats();
+            rounds.put(roundNumber, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Safety check, every candidate which achieves consensus in a round must agree on the same leader
+     */
+    void onConsensus(SimulatedNode candidate, int roundNumber, String leader){
+        RoundStats stats = roundStats(roundNumber);
+        if (stats.leader == null){
+            stats.leader = leader;
+            onRoundElected(roundNumber, leader);
+        }
+        else if (!stats.leader.equals(leader)){
+            safetyViolations++;
+            LOGGER.error("SAFETY VIOLATION at " + now + "ms : " + candidate.getNodeId() + " elected " + leader +
+                    " while " + stats.leader + " is elected for round " + roundNumber);
+        }
+    }
+
+    /**
+     * Safety check, at most one candidate sends heartbeats in a round
+     */
+    void onHeartbeatSenderStarted(SimulatedNode candidate, int roundNumber){
+        RoundStats stats = roundStats(roundNumber);
+        if (++stats.heartbeatSenders > 1){
+            safetyViolations++;
+            LOGGER.error("SAFETY VIOLATION at " + now + "ms : second leader " + candidate.getNodeId() +
+                    " in round " + roundNumber);
+        }
+        if (roundNumber >= currentLeaderRound){
+            this.currentLeader = candidate;
+            this.currentLeaderRound = roundNumber;
+        }
+    }
+
+    private void onRoundElected(int roundNumber, String leader){
+        if (leaderDeathTime >= 0){
+            long latency = now - leaderDeathTime;
+            failoverLatency.record(latency);
+            if (latency > failoverSlo){
+                sloViolations++;
+                LOGGER.warn("Failover SLO violation : round " + roundNumber + " elected " + latency + "ms after " +
+                        "the previous leader died");
+            }
+            this.leaderDeathTime = -1;
+        }
+        SimulatedNode elected = null;
+        for (SimulatedNode candidate : activeProcesses){
+            if (candidate.getNodeId().equals(leader)){
+                elected = candidate;
+                break;
+            }
+        }
+        if (elected == null || !elected.isAlive()){
+            //ELECTED A DEAD CANDIDATE, FAILOVER STARTS NOW
+            this.leaderDeathTime = now;
+        }
+    }
+
+    /**
+     * The consumer thread of a candidate stopped
+     * Without a kill, the candidate failed with an exception in its consumer thread and stays in the active
+     * processes as in LeaderElectionTester
+     *
+     * @param candidate stopped candidate
+     * @param reason reason of the stop
+     */
+    void onStopped(SimulatedNode candidate, String reason){
+        if (candidate.isKilled()){
+            return;
+        }
+        protocolFailures++;
+        LOGGER.warn("Protocol failure at " + now + "ms in " + candidate.getNodeId() + " : " + reason);
+        if (candidate == currentLeader && leaderDeathTime < 0){
+            this.leaderDeathTime = now;
+        }
+    }
+
+    private void startNewProcess(){
+        String nodeId = "node-" + (nodeCount++);
+        Random candidateRandom = new Random(random.nextLong());
+        SimulatedNode candidate = realCandidates ? new SimulatedCandidate(this, scheduler, log, nodeId,
+                candidateRandom) : new NativeCandidate(this, log, nodeId, candidateRandom);
+        activeProcesses.add(candidate);
+        startedProcesses++;
+        candidate.start();
+    }
+
+    private void kill(SimulatedNode candidate){
+        int index = activeProcesses.indexOf(candidate);
+        activeProcesses.set(index, activeProcesses.get(activeProcesses.size() - 1));
+        activeProcesses.remove(activeProcesses.size() - 1);
+        boolean wasLiveLeader = candidate == currentLeader && candidate.isAlive();
+        candidate.kill();
+        if (wasLiveLeader && leaderDeathTime < 0){
+            this.leaderDeathTime = now;
+        }
+    }
+
+    /**
+     * Same as LeaderElectionTester.killProcess(), kill a random candidate other than the immortal process, with an
+     * optional bias towards the current leader
+     */
+    private void killProcess(){
+        if (currentLeader != null && currentLeader.isAlive() && !currentLeader.getNodeId().equals(immortalProcess)
+                && random.nextDouble() < leaderKillRate){
+            kill(currentLeader);
+            return;
+        }
+        List<SimulatedNode> victims = new ArrayList<>(activeProcesses.size());
+        for (SimulatedNode candidate : activeProcesses){
+            if (!candidate.getNodeId().equals(immortalProcess)){
+                victims.add(candidate);
+            }
+        }
+        if (!victims.isEmpty()){
+            kill(victims.get(random.nextInt(victims.size())));
+        }
+    }
+
+    private void churn(){
+        if (leaderDeathTime >= 0 && now - leaderDeathTime > 10 * failoverSlo){
+            LOGGER.error("Election stalled : no leader elected for " + (now - leaderDeathTime) + "ms, stopping " +
+                    "the simulation");
+            this.endTime = now;
+            return;
+        }
+        if (random.nextDouble() > 0.5){
+            if (activeProcesses.size() < maxProcessCount * 1.2){
+                startNewProcess();
+            }
+            else{
+                killProcess();
+            }
+        }
+        else{
+            if (activeProcesses.size() > maxProcessCount * 0.8){
+                killProcess();
+            }
+            else{
+                startNewProcess();
+            }
+        }
+        schedule(now + (1 + random.nextInt(4)) * 1000, this::churn);
+    }
+
+    private void startInitialProcesses(final int remaining, final long testTime){
+        if (remaining <= 0){
+            this.endTime = now + testTime;
+            churn();
+            if (followerStallInterval > 0){
+                schedule(now + followerStallInterval, this::stallFollower);
+            }
+            return;
+        }
+        startNewProcess();
+        schedule(now + (1 + random.nextInt(10)) * 1000, () -> startInitialProcesses(remaining - 1, testTime));
+    }
+
+    /**
+     * Run the simulation
+     * Start 0.8n candidates, then randomly start/kill candidates for testTime of virtual time
+     *
+     * @param testTime virtual time of the churn phase in milliseconds
+     * @return whether all safety and SLO checks passed without protocol failures
+     */
+    public boolean run(long testTime){
+        long wallStart = System.nanoTime();
+        final int initialProcessCount = (int) Math.ceil(maxProcessCount * 0.8);
+        schedule(0, () -> startInitialProcesses(initialProcessCount, testTime));
+        SimulationEvent event;
+        while ((event = events.poll()) != null && event.time <= endTime){
+            this.now = event.time;
+            event.action.run();
+            processedEvents++;
+        }
+        if (leaderDeathTime >= 0 && now - leaderDeathTime > failoverSlo){
+            sloViolations++;
+            LOGGER.warn("Failover SLO violation : no leader elected for " + (now - leaderDeathTime) + "ms at the end" +
+                    " of the simulation");
+        }
+        double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+        this.report(wallSeconds);
+        return safetyViolations == 0 && sloViolations == 0 && protocolFailures == 0;
+    }
+
+    private void report(double wallSeconds){
+        long electedRounds = 0, votes = 0;
+        for (RoundStats stats : rounds.values()){
+            if (stats.leader != null){
+                electedRounds++;
+            }
+            votes += stats.votes;
+        }
+        LOGGER.info("Simulated " + now + "ms in " + String.format("%.3f", wallSeconds) + "s; events : " +
+                processedEvents + "; log records : " + log.size() + "; started candidates : " + startedProcesses);
+        LOGGER.info("Elected rounds : " + electedRounds + " (" + String.format("%.1f", electedRounds / wallSeconds) +
+                " rounds/s); votes : " + votes + " (" + String.format("%.2f", rounds.isEmpty() ? 0.0 :
+                (double) votes / rounds.size()) + " per round)");
+        LOGGER.info(failoverLatency.summary() + "; SLO " + failoverSlo + "ms violated " + sloViolations + " times");
+        LOGGER.info("Safety violations : " + safetyViolations + "; protocol failures : " + protocolFailures);
+        if (followerStallInterval > 0){
+            LOGGER.info("Follower stalls : " + followerStalls + "; suspicions : " + suspicions + "; rounds opened " +
+                    "while the leader was alive : " + liveLeaderRounds);
+        }
+    }
+
+    /**
+     * Run a simulation
+     *
+     * @param args seed, maxProcessCount, testTime (s), [minDelay (ms), maxDelay (ms), leaderKillRate,
+     *             failoverSlo (ms), followerStallInterval (ms)]
+     */
+    public static void main(String[] args){
+        long seed = Long.parseLong(args[0]);
+        int maxProcessCount = Integer.parseInt(args[1]);
+        long testSeconds = Long.parseLong(args[2]);
+        long minDelay = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        long maxDelay = args.length > 4 ? Long.parseLong(args[4]) : 20;
+        //REAL LEADER CANDIDATES LOG EVERY RECORD, ONLY THE SIMULATION AND ERRORS ARE LOGGED
+        Logger.getLogger("leaderElection").setLevel(Level.WARN);
+        Logger.getLogger("distributedConsensus").setLevel(Level.WARN);
+        //BUSY POLLS SPIN IN WALL CLOCK TIME AND A WALL CLOCK EVALUATION BUDGET WOULD MAKE RUNS DEPEND ON THE HOST
+        System.setProperty("busyPoll", "false");
+        if (System.getProperty("jsTimeBudgetMs") == null){
+            System.setProperty("jsTimeBudgetMs", "60000");
+        }
+
+        ElectionSimulator simulator = new ElectionSimulator(seed, maxProcessCount, new UniformNetwork(minDelay,
+                maxDelay));
+        if (args.length > 5){
+            simulator.setLeaderKillRate(Double.parseDouble(args[5]));
+        }
+        if (args.length > 6){
+            simulator.setFailoverSlo(Long.parseLong(args[6]));
+        }
+        if (args.length > 7){
+            simulator.setFollowerStallInterval(Long.parseLong(args[7]));
+        }
+        simulator.setRealCandidates(Boolean.getBoolean("realCandidates"));
+        boolean passed = simulator.run(testSeconds * 1000);
+        LOGGER.info(passed ? "Simulation passed" : "Simulation FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
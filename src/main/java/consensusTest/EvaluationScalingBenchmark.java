@@ -0,0 +1,114 @@
+package consensusTest;
+
+import distributedConsensus.EvaluationDispatcher;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measure Javascript evaluation throughput of many lock groups on an EvaluationDispatcher with 1 to n threads
+ * Every group evaluates its own distributed lock records in order, as LockHandler does, without Kafka
+ */
+public class EvaluationScalingBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(EvaluationScalingBenchmark.class);
+    private static final String INITIAL_JS_CODE = "var lockStatuses = new Set([]); result = false;";
+
+    private final int groupCount, recordsPerGroup;
+
+    /**
+     * Constructor
+     *
+     * @param groupCount number of independent lock groups
+     * @param recordsPerGroup number of records evaluated by each group
+     */
+    public EvaluationScalingBenchmark(int groupCount, int recordsPerGroup){
+        this.groupCount = groupCount;
+        this.recordsPerGroup = recordsPerGroup;
+    }
+
+    /**
+     * Evaluate the records of all the groups on a dispatcher with the given number of threads
+     *
+     * @param threads parallelism of the dispatcher
+     * @return throughput in evaluated records per second
+     * @throws InterruptedException if interrupted while stopping the dispatcher
+     */
+    public double run(int threads) throws InterruptedException {
+        EvaluationDispatcher dispatcher = new EvaluationDispatcher(threads);
+        List<EvaluationDispatcher.Shard> shards = new ArrayList<>();
+        List<StringBuilder> runtimeJsCodes = new ArrayList<>();
+        for (int group = 0; group < groupCount; group++){
+            shards.add(dispatcher.createShard("group-" + group));
+            runtimeJsCodes.add(new StringBuilder(INITIAL_JS_CODE));
+        }
+
+        long startTime = System.nanoTime();
+        List<CompletableFuture<Boolean>> evaluations = new ArrayList<>();
+        for (int record = 0; record < recordsPerGroup; record++){
+            for (int group = 0; group < groupCount; group++){
+                final StringBuilder runtimeJsCode = runtimeJsCodes.get(group);
+                final String nodeId = "node-" + group;
+                //FIRST RECORD OF EVERY GROUP IS WRITTEN BY THE NODE EVALUATING IT, SO THE RESULT CHANGES ONCE
+                final String command = "lockStatuses.add(\"node-" + (record == 0 ? group : -record) + "\");";
+                evaluations.add(shards.get(group).submit(evaluator -> {
+                    runtimeJsCode.append(command);
+                    return evaluator.eval(runtimeJsCode + "if(Array.from(lockStatuses)[0] === \"" + nodeId +
+                            "\"){result = true;} result;").asBoolean();
+                }));
+            }
+        }
+        CompletableFuture.allOf(evaluations.toArray(new CompletableFuture<?>[0])).join();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        for (EvaluationDispatcher.Shard shard : shards){
+            shard.submit(evaluator -> {
+                evaluator.close();
+                return null;
+            });
+        }
+        dispatcher.shutdown(60000);
+        return evaluations.size() / seconds;
+    }
+
+    /**
+     * Run the benchmark with 1, 2, 4 ... maxThreads threads after -DwarmupRuns (default 10) warm up runs with
+     * maxThreads threads, and report the best of -DbenchmarkRuns (default 3) runs of every thread count
+     * Throughput keeps improving over the first runs while evaluation code is compiled, so the thread counts are
+     * measured in alternating sweeps instead of one after the other
+     *
+     * @param args number of lock groups, records per group, [maximum number of threads, default: cores]
+     * @throws InterruptedException if interrupted while stopping a dispatcher
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int groupCount = Integer.parseInt(args[0]);
+        int recordsPerGroup = Integer.parseInt(args[1]);
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        EvaluationScalingBenchmark benchmark = new EvaluationScalingBenchmark(groupCount, recordsPerGroup);
+        for (int warmupRun = Integer.getInteger("warmupRuns", 10); warmupRun > 0; warmupRun--){
+            benchmark.run(maxThreads);
+        }
+
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads && threads * 2 > maxThreads ?
+                maxThreads : threads * 2){
+            threadCounts.add(threads);
+        }
+        double[] throughputs = new double[threadCounts.size()];
+        for (int benchmarkRun = Integer.getInteger("benchmarkRuns", 3); benchmarkRun > 0; benchmarkRun--){
+            for (int i = 0; i < threadCounts.size(); i++){
+                throughputs[i] = Math.max(throughputs[i], benchmark.run(threadCounts.get(i)));
+            }
+        }
+        LOGGER.info(groupCount + " groups, " + recordsPerGroup + " records per group, " +
+                Runtime.getRuntime().availableProcessors() + " available processors");
+        for (int i = 0; i < threadCounts.size(); i++){
+            int threads = threadCounts.get(i);
+            LOGGER.info(String.format("threads=%d, throughput=%.1f records/s, speedup=%.2f, efficiency=%.0f%%",
+                    threads, throughputs[i], throughputs[i] / throughputs[0],
+                    100 * throughputs[i] / throughputs[0] / threads));
+        }
+    }
+}
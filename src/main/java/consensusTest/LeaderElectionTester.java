@@ -1,17 +1,25 @@
 package consensusTest;
 
 import distributedConsensus.ConsumerGenerator;
+import distributedConsensus.LatencyRecorder;
+import leaderElection.ElectionResult;
 import leaderElection.LeaderCandidate;
+import leaderElection.RoundTracker;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.log4j.Logger;
 import org.graalvm.polyglot.Context;
-import org.graalvm.polyglot.Value;
 
-import java.util.HashMap;
-import java.util.Random;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * External class to start/kill LeaderCandidate threads and monitor the execution of leader elections
@@ -19,13 +27,46 @@ import java.util.UUID;
 public class LeaderElectionTester {
 
     private static final Logger LOGGER = Logger.getLogger(LeaderCandidate.class);
+    private static final long MIN_POLL_MILLIS = 10, MAX_POLL_MILLIS = 500;
+    static final String INITIAL_JS_CODE = "var nodeRanks = [];result = {consensus:false, value:null, " +
+            "firstCandidate : null, timeout : false};var rankedVotes = 0; var maxRank = 0; var maxRankClient = null;";
+    //ONLY VOTES ADDED SINCE THE PREVIOUS EVALUATION ARE SCANNED FOR THE MAXIMUM RANK
+    static final String EVALUATION_JS_CODE = "if(nodeRanks.length != 0){" +
+                                "result.firstCandidate = nodeRanks[0].client;" +
+                    "}" +
+                    "for (; rankedVotes < nodeRanks.length; rankedVotes++) {"+
+                        "if(nodeRanks[rankedVotes].rank > maxRank){"+
+                            "maxRankClient = nodeRanks[rankedVotes].client;" +
+                            "maxRank = nodeRanks[rankedVotes].rank;" +
+                        "}" +
+                    "}" +
+                    "if(result.timeout){" +
+                                "result.consensus=true;" +
+                                "result.value = maxRankClient;" +
+                            "}" +
+                    "result;";
 
     private final String kafkaServerAddress, kafkaTopic,  initialJsCode, evaluationJsCode;
     private final Context jsContext;
-    private String runtimeJsCode, immortalProcess;
+    private String runtimeJsCode;
+    private int jsRoundNumber;
+    private final boolean nativeObserver;
+    private final RoundTracker roundTracker;
+    private final RoundTimeline timeline;
     private KafkaConsumer<String, String> kafkaConsumer;
-    private boolean terminate; //, maxProcessCountReached;
-    private HashMap<String, LeaderCandidate> activeProcesses;
+    private volatile boolean terminate; //, maxProcessCountReached;
+    private volatile String immortalProcess;
+    private final ProcessRegistry activeProcesses;
+    //KILLED PROCESSES ARE RESTARTED WITH THEIR IDS TO RESUME FROM THEIR CHECKPOINTS, IF -DcheckpointDir IS SET
+    private final boolean restartKilledProcesses;
+    private final Queue<String> killedNodeIds;
+    private final Map<String, Thread> consumerThreads;
+
+    //LEADER OBSERVED BY THE CONSUMER THREAD, TO MEASURE FAILOVER LATENCY OF KILLED LEADERS
+    private final LatencyRecorder failoverLatency;
+    private String currentLeader;
+    private int currentLeaderRound;
+    private long leaderKillTime;
 
     /**
      * Constructor
@@ -39,86 +80,208 @@ public class LeaderElectionTester {
         this.kafkaConsumer = ConsumerGenerator.generateConsumer(kafkaServerAddress, kafkaTopic, "tester");
         this.jsContext = Context.create("js");
         this.immortalProcess = null;
-        this.activeProcesses = new HashMap<>();
+        this.activeProcesses = new ProcessRegistry();
+        this.restartKilledProcesses = System.getProperty("checkpointDir") != null;
+        this.killedNodeIds = new ConcurrentLinkedQueue<>();
+        this.consumerThreads = new ConcurrentHashMap<>();
         this.terminate = false;
-        this.initialJsCode = "var nodeRanks = [];result = {consensus:false, value:null, firstCandidate : null, timeout : false};";
-        this.evaluationJsCode = "if(Object.keys(nodeRanks).length != 0){" +
-                                    "result.firstCandidate = nodeRanks[0].client;" +
-                        "}" +
-                        "if(result.timeout){" +
-                                    "result.consensus=true;" +
-                                    "var leader = null;"+
-                                    "var maxRank = 0;"+
-                                    "for (var i = 0; i < nodeRanks.length; i++) {"+
-                                        "if(nodeRanks[i].rank > maxRank){"+
-                                            "result.value = nodeRanks[i].client;" +
-                                            "maxRank = nodeRanks[i].rank;" +
-                                        "}" +
-                                    "}" +
-                                "}" +
-                        "result;";
+        this.failoverLatency = new LatencyRecorder("failover latency");
+        this.currentLeaderRound = -1;
+        this.leaderKillTime = -1;
+        this.initialJsCode = INITIAL_JS_CODE;
+        this.evaluationJsCode = EVALUATION_JS_CODE;
         this.runtimeJsCode = initialJsCode;
+        this.jsRoundNumber = -1;
+        this.nativeObserver = !"js".equals(System.getProperty("observer"));
+        this.roundTracker = new RoundTracker();
+        this.timeline = new RoundTimeline();
     }
 
     /**
      * Consume the same Kafka log in which leader election happens and extract special states
      * in the election process
+     * Polls with a timeout which doubles from MIN_POLL_MILLIS up to MAX_POLL_MILLIS while the log is idle
      */
     public void read(){
         Runnable consuming = () -> {
-            int roundNumber = -1;
+            long pollMillis = MIN_POLL_MILLIS;
             try {
                 while (!terminate) {
-                    ConsumerRecords<String, String> records = kafkaConsumer.poll(10);
+                    ConsumerRecords<String, String> records = kafkaConsumer.poll(Duration.ofMillis(pollMillis));
+                    pollMillis = records.isEmpty() ? Math.min(pollMillis * 2, MAX_POLL_MILLIS) : MIN_POLL_MILLIS;
                     for (ConsumerRecord<String, String> record : records) {
-                        if (!record.value().startsWith("CHECK")){
-                            String[] recordContent = record.value().split(",", 2);
-                            int recordNumber = Integer.parseInt(recordContent[0]);
-                            String recordMessage = recordContent[1];
-                            if(!recordMessage.startsWith("ALIVE")){
-                                if (recordNumber > roundNumber){
-                                    roundNumber = recordNumber;
-                                    this.immortalProcess = jsContext.eval("js","result = {timeout : false}; var nodeRanks = [];" + recordMessage + "nodeRanks[0].client;").toString();
-                                    LOGGER.info("Cannot kill " + this.immortalProcess + " for a while");
-                                    runtimeJsCode = initialJsCode + recordMessage;
-                                }
-                                else{
-                                    if (recordMessage.equals("result.timeout = true;")){
-                                        LOGGER.info(this.immortalProcess + " can be killed from now on");
-                                        this.immortalProcess = null;
-                                    }
-                                    runtimeJsCode = runtimeJsCode + recordMessage;
-                                    Value result = jsContext.eval("js",runtimeJsCode + evaluationJsCode);
-                                    boolean leaderElected = result.getMember("consensus").asBoolean();
-                                    if (leaderElected){
-                                        LOGGER.info("Leader for round number :" + roundNumber + " is " + result.getMember("value"));
-                                    }
-                                }
-                            }
+                        if (record.value() == null){
+                            //TOMBSTONE WRITTEN FOR LOG COMPACTION
+                            continue;
+                        }
+                        if (nativeObserver){
+                            this.observeNatively(record);
+                        }
+                        else if (!record.value().startsWith("CHECK")){
+                            this.observeWithJs(record);
                         }
                     }
                 }
             } catch(Exception exception) {
-                LOGGER.error(exception.getStackTrace());
+                LOGGER.error("Exception occurred :", exception);
             }finally {
                 kafkaConsumer.close();
             }
         };
         Thread consumer = new Thread(consuming);
         consumer.setName("tester_consumer");
-        new Thread(consuming).start();
+        consumer.start();
+    }
+
+    /**
+     * Follow rounds with RoundTracker, in O(1) per record
+     *
+     * @param record Kafka record of the leader election topic
+     */
+    private void observeNatively(ConsumerRecord<String, String> record){
+        switch (roundTracker.onRecord(record.value())){
+            case NEW_ROUND:
+                this.immortalProcess = roundTracker.getFirstCandidate();
+                LOGGER.info("Cannot kill " + this.immortalProcess + " for a while");
+                if (roundTracker.getVoteCount() > 0){
+                    timeline.onVote(roundTracker.getRoundNumber(), record.timestamp());
+                }
+                break;
+            case VOTE:
+                timeline.onVote(roundTracker.getRoundNumber(), record.timestamp());
+                break;
+            case ELECTED:
+                LOGGER.info(this.immortalProcess + " can be killed from now on");
+                this.immortalProcess = null;
+                timeline.onTimeout(roundTracker.getRoundNumber(), record.timestamp());
+                LOGGER.info("Leader for round number :" + roundTracker.getRoundNumber() + " is " +
+                        roundTracker.getLeader());
+                this.onLeaderElected(roundTracker.getRoundNumber(), roundTracker.getLeader());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Follow rounds by evaluating runtimeJsCode and evaluationJsCode upon every non ALIVE/SUSPECT record
+     *
+     * @param record Kafka record of the leader election topic
+     */
+    private void observeWithJs(ConsumerRecord<String, String> record){
+        String[] recordContent = record.value().split(",", 2);
+        int recordNumber = Integer.parseInt(recordContent[0]);
+        String recordMessage = recordContent[1];
+        if(!RoundTracker.isSignal(recordMessage)){
+            if (recordNumber > jsRoundNumber){
+                jsRoundNumber = recordNumber;
+                this.immortalProcess = jsContext.eval("js","result = {timeout : false}; var nodeRanks = [];" + recordMessage + "nodeRanks[0].client;").toString();
+                LOGGER.info("Cannot kill " + this.immortalProcess + " for a while");
+                runtimeJsCode = initialJsCode + recordMessage;
+                timeline.onVote(jsRoundNumber, record.timestamp());
+            }
+            else{
+                if (recordMessage.equals("result.timeout = true;")){
+                    LOGGER.info(this.immortalProcess + " can be killed from now on");
+                    this.immortalProcess = null;
+                    timeline.onTimeout(jsRoundNumber, record.timestamp());
+                }
+                else{
+                    timeline.onVote(jsRoundNumber, record.timestamp());
+                }
+                runtimeJsCode = runtimeJsCode + recordMessage;
+                ElectionResult result = ElectionResult.of(jsContext.eval("js",runtimeJsCode + evaluationJsCode +
+                        ElectionResult.PROJECTION_JS_CODE));
+                if (result.isConsensus()){
+                    LOGGER.info("Leader for round number :" + jsRoundNumber + " is " + result.getLeader());
+                    this.onLeaderElected(jsRoundNumber, result.getLeader());
+                }
+            }
+        }
+    }
+
+    /**
+     * Track the elected leader and record the failover latency if the previous leader was killed
+     *
+     * @param roundNumber round number of the election
+     * @param leader id of the elected leader
+     */
+    private synchronized void onLeaderElected(int roundNumber, String leader){
+        if (roundNumber <= currentLeaderRound){
+            return;
+        }
+        timeline.onElected(roundNumber, leader, System.currentTimeMillis());
+        if (leaderKillTime >= 0){
+            failoverLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - leaderKillTime));
+            leaderKillTime = -1;
+        }
+        this.currentLeader = leader;
+        this.currentLeaderRound = roundNumber;
+    }
+
+    /**
+     * Start the failover latency measurement if the killed process is the current leader
+     *
+     * @param nodeId id of the killed process
+     */
+    private synchronized void onProcessKilled(String nodeId){
+        if (nodeId.equals(currentLeader) && leaderKillTime < 0){
+            this.leaderKillTime = System.nanoTime();
+            timeline.onLeaderDeath(currentLeaderRound, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Get failover latencies, time between killing a leader and observing the next elected leader
+     *
+     * @return failover latencies
+     */
+    public LatencyRecorder getFailoverLatency() {
+        return failoverLatency;
+    }
+
+    /**
+     * Get per round timeline of the observed elections
+     *
+     * @return timeline of the observed elections
+     */
+    public RoundTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Get number of running LeaderCandidates
+     *
+     * @return number of running LeaderCandidates
+     */
+    public int getActiveProcessCount(){
+        return activeProcesses.size();
+    }
+
+    /**
+     * Start a new LeaderCandidate thread in the Kafka topic of the tester
+     */
+    public void startNewProcess(){
+        this.startNewProcess(kafkaServerAddress, kafkaTopic);
     }
 
     /**
      * Start a new LeaderCandidate thread
+     * Restarts a killed LeaderCandidate with the same id instead, if checkpoints are enabled and its consumer
+     * thread is finished
      *
      * @param kafkaServerAddress URL of Kafka server
      * @param kafkaTopic Kafka topic which LeaderCandidates communicate through
      */
     public void startNewProcess(String kafkaServerAddress, String kafkaTopic){
-        String nodeId = UUID.randomUUID().toString();
-        System.setProperty("id", nodeId);
-        LOGGER.info("Id of the new process : " + nodeId);
+        String nodeId = this.pollStoppedNodeId();
+        if (nodeId == null){
+            nodeId = UUID.randomUUID().toString();
+            LOGGER.info("Id of the new process : " + nodeId);
+        }
+        else{
+            LOGGER.info("Restarting killed process : " + nodeId);
+        }
 
         LeaderCandidate leaderCandidate = new LeaderCandidate(nodeId, initialJsCode, this.evaluationJsCode,
                 kafkaServerAddress, kafkaTopic);
@@ -126,91 +289,85 @@ public class LeaderElectionTester {
         Thread leaderCandidateThread = new Thread(leaderCandidate);
         leaderCandidateThread.setName(nodeId + "_consumer");
         leaderCandidateThread.start();
-        this.activeProcesses.put(nodeId, leaderCandidate);
+        this.consumerThreads.put(nodeId, leaderCandidateThread);
+        this.activeProcesses.add(nodeId, leaderCandidate);
     }
 
     /**
-     * stop a LeaderCandidate thread
+     * Take the id of a killed LeaderCandidate whose consumer thread is finished, so that two LeaderCandidates
+     * never share a checkpoint
+     *
+     * @return id of a stopped LeaderCandidate, null if there is none
      */
-    public void killProcess(){
-        Object[] nodeIds = activeProcesses.keySet().toArray();
-        Object nodeId = nodeIds[new Random().nextInt(nodeIds.length)];
-        LOGGER.info("Id of the process to be killed  : " + nodeId + " :: " + "Id of the immortal process : " + this.immortalProcess);
-        if (nodeId.equals(this.immortalProcess)){
-            LOGGER.info("Can't kill " + nodeId + " at this moment; Trying to kill again");
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    private String pollStoppedNodeId(){
+        String nodeId = killedNodeIds.poll();
+        if (nodeId != null && consumerThreads.get(nodeId).isAlive()){
+            killedNodeIds.offer(nodeId);
+            return null;
         }
-        else{
-            LeaderCandidate leaderCandidateToBeKilled = activeProcesses.get(nodeId);
-            activeProcesses.remove(nodeId);
-            leaderCandidateToBeKilled.setTerminate(true);
-            LOGGER.info("Killed " + nodeId);
+        return nodeId;
+    }
+
+    /**
+     * Stop a random LeaderCandidate thread other than the immortal process
+     *
+     * @return whether a LeaderCandidate is stopped
+     */
+    public boolean killProcess(){
+        return this.killProcess(this.immortalProcess);
+    }
+
+    /**
+     * Stop a random LeaderCandidate thread
+     *
+     * @param excludedNodeId id of a LeaderCandidate which must not be stopped, can be null
+     * @return whether a LeaderCandidate is stopped
+     */
+    public boolean killProcess(String excludedNodeId){
+        ProcessRegistry.Entry killed = activeProcesses.removeRandom(ThreadLocalRandom.current(), excludedNodeId);
+        if (killed == null){
+            LOGGER.info("Can't kill " + excludedNodeId + " at this moment; No other process to kill");
+            return false;
+        }
+        this.onProcessKilled(killed.getNodeId());
+        killed.getLeaderCandidate().setTerminate(true);
+        if (restartKilledProcesses){
+            killedNodeIds.offer(killed.getNodeId());
         }
+        LOGGER.info("Killed " + killed.getNodeId() + " :: " + "Id of the immortal process : " + excludedNodeId);
+        return true;
     }
 
     /**
-     * Start n threads.
-     * Randomly start/kill threads maintaining at least n*0.8 threads and at most n*1.2 in the election.
+     * Start n threads.
+     * Randomly start/kill threads maintaining at least n*0.8 threads and at most n*1.2 in the election.
      * Continue step 2 for testTime time period.
-     * Kill all the remaining threads to finish the test run.
+     * Kill all the remaining threads to finish the test run.
      *
-     * @param args kafkaServerAddress, KafkaTopic, maxProcessCount testTime
+     * @param args kafkaServerAddress, KafkaTopic, maxProcessCount testTime, [actionsPerSecond, workerThreads]
      */
     public static void main(String[] args){
         Thread.currentThread().setName("tester_main");
         int testSeconds = Integer.parseInt(args[3]);
         int maxProcessCount = Integer.parseInt(args[2]);
+        double actionsPerSecond = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+        int workerThreads = args.length > 5 ? Integer.parseInt(args[5]) : 1;
         LeaderElectionTester leaderElectionTester = new LeaderElectionTester(args[0], args[1]);
         leaderElectionTester.read();
 
-        for (int i = 0; i < maxProcessCount*0.8; i++){
-            leaderElectionTester.startNewProcess(leaderElectionTester.kafkaServerAddress, leaderElectionTester.kafkaTopic);
-            int randWait = (int) (1 + Math.random() * 10) * 1000;
-            try {
-                Thread.sleep(randWait);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        long startSeconds = System.currentTimeMillis();
-        while(System.currentTimeMillis() - startSeconds <= testSeconds*1000) {
-            double random = Math.random();
-            if (random > 0.5) {
-                if (leaderElectionTester.activeProcesses.size() < maxProcessCount*1.2) {
-                    leaderElectionTester.startNewProcess(leaderElectionTester.kafkaServerAddress, leaderElectionTester.kafkaTopic);
-                }
-                else{
-                    leaderElectionTester.killProcess();
-                }
-            }
-            else {
-                if (leaderElectionTester.activeProcesses.size() > maxProcessCount*0.8){
-                    leaderElectionTester.killProcess();
-                }
-                else{
-                    leaderElectionTester.startNewProcess(leaderElectionTester.kafkaServerAddress, leaderElectionTester.kafkaTopic);
-                }
-            }
-            LOGGER.info("Number of leader candidates alive : " + leaderElectionTester.activeProcesses.size());
-
-            int randWait = (int) (1 + Math.random() * 4) * 1000;
+        ChurnDriver churnDriver = new ChurnDriver(leaderElectionTester, maxProcessCount, actionsPerSecond,
+                workerThreads);
+        churnDriver.run(testSeconds*1000L);
+        leaderElectionTester.terminate = true;
+        String timelinePath = System.getProperty("timeline");
+        if (timelinePath != null){
             try {
-                Thread.sleep(randWait);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                leaderElectionTester.getTimeline().exportCsv(timelinePath);
+                LOGGER.info("Exported round timeline to " + timelinePath);
+            } catch (IOException e) {
+                LOGGER.error("Failed to export round timeline :", e);
             }
         }
-        LOGGER.info("TestTime is out. Will kill all the threads and finish the test run");
-
-        while(leaderElectionTester.activeProcesses.size() > 0){
-            leaderElectionTester.killProcess();
-        }
-        leaderElectionTester.terminate = true;
         LOGGER.info("Test run is finished successfully");
     }
 }
@@ -0,0 +1,606 @@
+package consensusTest;
+
+import leaderElection.RoundTracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * LeaderCandidate state machine driven by the virtual clock of ElectionSimulator, the default candidate of the
+ * simulation
+ * Mirrors LeaderCandidate.run(), participate(), onEvaluating(), onConsensus(), preVote(), HeartbeatListener and
+ * participateToNewRound(), with blocking calls (sleep, join) replaced by consumer stalls and scheduled events.
+ * The leader keeps consuming while its heartbeats are scheduled, and steps down on the first record of the next
+ * round. Votes are suppressed by higher ranked votes with the same rank based backoff, and a new round is only
+ * opened after the pre-vote. Javascript evaluation is replaced by native tracking of the round which gives the same
+ * result as LeaderElectionTester's evaluationJsCode, so that thousands of rounds are simulated per second.
+ * SimulatedCandidate runs the real LeaderCandidate to cross-check this copy.
+ */
+class NativeCandidate implements SimulatedNode {
+
+    enum roundStatuses {
+        ONGOING,
+        NEW,
+        FINISHED
+    }
+    static final long HEARTBEAT_INTERVAL = 100;
+    static final long HEARTBEAT_TIMEOUT = 2000;
+    static final long VOTE_CLOSING_TIMEOUT = 500;
+    static final int MAX_RANK = 100;
+    static final long VOTE_BACKOFF = Long.getLong("voteBackoffMs", 2);
+    static final int PRE_VOTE_QUORUM = Integer.getInteger("preVoteQuorum", 2);
+    static final long PRE_VOTE_TIMEOUT = Long.getLong("preVoteTimeoutMs", 10000);
+
+    private final ElectionSimulator simulator;
+    private final SimulatedLog log;
+    private final Random random;
+    private final String nodeId, checkKey, checkRecord;
+    private boolean alive, killed, correctRoundIdentified, timeoutCounted, leading;
+    private roundStatuses joiningState;
+    private int roundNumber;
+    private String electedLeader;
+
+    //EVALUATION STATE OF THE CURRENT ROUND (nodeRanks AND result OF THE JAVASCRIPT)
+    private String firstCandidate, bestCandidate;
+    private int bestRank;
+    private boolean roundTimeout;
+
+    //CONSUMER THREAD
+    private int nextOffset, visibleOffset;
+    private long busyUntil, lastVisibleTime;
+    private String alivePrefix;
+    private boolean deliveryScheduled;
+
+    //HEARTBEAT LISTENER THREAD
+    private boolean listening;
+    private long listenerDeadline;
+    private int pendingVoteRank, suppressionCheckedOffset = -1;
+    private long voteTime;
+
+    //PRE-VOTE OF THE HEARTBEAT LISTENER
+    private boolean suspecting;
+    private long preVoteDeadline;
+    private int abandonedPreVoteRound = -1;
+    private final Set<String> suspects = new HashSet<>();
+    private final Map<String, Integer> memberRounds = new HashMap<>();
+    private String heartbeatLeader;
+
+    /**
+     * Constructor
+     *
+     * @param simulator simulation running the candidate
+     * @param log log of the simulation
+     * @param nodeId unique id of the candidate
+     * @param random source of ranks and CHECK records of the candidate
+     */
+    NativeCandidate(ElectionSimulator simulator, SimulatedLog log, String nodeId, Random random){
+        this.simulator = simulator;
+        this.log = log;
+        this.random = random;
+        this.nodeId = nodeId;
+        String uniqueKey = Long.toHexString(random.nextLong());
+        this.checkKey = "CHECK/" + uniqueKey;
+        this.checkRecord = "CHECK," + uniqueKey;
+        this.alive = true;
+        this.visibleOffset = -1;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return alive;
+    }
+
+    @Override
+    public boolean isKilled() {
+        return killed;
+    }
+
+    /**
+     * Write the CHECK record, as LeaderCandidate.run() does first
+     */
+    @Override
+    public void start(){
+        simulator.write(this, checkKey, checkRecord);
+    }
+
+    @Override
+    public void stallConsumer(long until){
+        this.busyUntil = Math.max(busyUntil, until);
+    }
+
+    /**
+     * Stop the candidate, all of its pending events become no-ops
+     */
+    @Override
+    public void kill(){
+        this.killed = true;
+        this.stop();
+    }
+
+    private void stop(){
+        this.alive = false;
+        this.listening = false;
+        this.leading = false;
+    }
+
+    /**
+     * Stop the candidate the same way LeaderCandidate stops on an exception in its consumer thread
+     *
+     * @param reason message of the exception
+     */
+    private void fail(String reason){
+        this.stop();
+        simulator.onStopped(this, reason);
+    }
+
+    @Override
+    public void onAppend(int offset){
+        if (!alive){
+            return;
+        }
+        if (!correctRoundIdentified){
+            if (checkRecord.equals(log.value(offset))){
+                //RECORDS BEFORE THE CHECK RECORD ARE SCANNED THROUGH THE LOG INDEX
+                this.nextOffset = offset;
+                this.lastVisibleTime = simulator.now();
+                scheduleNextDelivery();
+            }
+        }
+        else if (!deliveryScheduled){
+            scheduleNextDelivery();
+        }
+    }
+
+    /**
+     * Time at which the record at nextOffset becomes visible to this candidate
+     * Records are consumed in order, so a record is never visible before the previous one
+     */
+    private long nextVisibleTime(){
+        if (visibleOffset != nextOffset){
+            this.visibleOffset = nextOffset;
+            this.lastVisibleTime = Math.max(lastVisibleTime, log.appendTime(nextOffset) + simulator.consumeDelay());
+        }
+        return lastVisibleTime;
+    }
+
+    /**
+     * Heartbeats of the current round only push the listener deadline forward, a listening follower
+     * consumes them lazily when its listener is checked instead of scheduling an event per heartbeat
+     */
+    private boolean isLazyHeartbeat(int offset){
+        String value = log.value(offset);
+        return listening && joiningState != roundStatuses.FINISHED && value != null && value.startsWith(alivePrefix);
+    }
+
+    private void scheduleNextDelivery(){
+        int pending = nextOffset;
+        while (pending < log.size() && isLazyHeartbeat(pending)){
+            pending++;
+        }
+        if (pending >= log.size()){
+            return;
+        }
+        this.deliveryScheduled = true;
+        simulator.schedule(Math.max(nextVisibleTime(), busyUntil), this::deliver);
+    }
+
+    private void deliver(){
+        this.deliveryScheduled = false;
+        if (!alive){
+            return;
+        }
+        if (simulator.now() < Math.max(busyUntil, nextVisibleTime())){
+            this.deliveryScheduled = true;
+            simulator.schedule(Math.max(busyUntil, nextVisibleTime()), this::deliver);
+            return;
+        }
+        if (process(log.value(nextOffset))){
+            nextOffset++;
+        }
+        if (alive){
+            scheduleNextDelivery();
+        }
+    }
+
+    /**
+     * Consume the lazily skipped heartbeats which are visible by now
+     */
+    private void catchUpHeartbeats(){
+        while (!deliveryScheduled && nextOffset < log.size() && isLazyHeartbeat(nextOffset)){
+            long consumedTime = Math.max(nextVisibleTime(), busyUntil);
+            if (consumedTime > simulator.now()){
+                return;
+            }
+            this.listenerDeadline = consumedTime + HEARTBEAT_TIMEOUT;
+            this.suspects.clear();
+            String command = log.value(nextOffset);
+            this.observeMember(roundNumber, command.substring(command.indexOf(',') + 1));
+            nextOffset++;
+        }
+    }
+
+    /**
+     * Process a record as the consumer loop of LeaderCandidate.run() does
+     *
+     * @param command record value
+     * @return whether the record is consumed or has to be delivered again after a stall
+     */
+    private boolean process(String command){
+        if (!correctRoundIdentified){
+            List<String> latestRoundsJsCode = new ArrayList<>();
+            int latestRoundNumber = log.latestRoundBefore(nextOffset, latestRoundsJsCode);
+            this.participate(latestRoundNumber, latestRoundsJsCode);
+            this.correctRoundIdentified = true;
+            return true;
+        }
+        if (command == null || command.startsWith("CHECK,")){
+            return true;
+        }
+        String[] recordContent = command.split(",", 2);
+        int recordRoundNumber = Integer.parseInt(recordContent[0]);
+        String recordMessage = recordContent[1];
+        this.observeMember(recordRoundNumber, recordMessage);
+
+        if (recordMessage.startsWith(RoundTracker.SUSPECT_PREFIX)){
+            this.onSuspicion(recordRoundNumber, recordMessage.substring(RoundTracker.SUSPECT_PREFIX.length()));
+            return true;
+        }
+        if (this.joiningState == roundStatuses.FINISHED){
+            if (recordRoundNumber == this.roundNumber){
+                this.handleHeartbeat();
+            }
+            else if (recordRoundNumber == this.roundNumber + 1){
+                this.abandonPreVote();
+                if (!this.awaitPendingVote(recordMessage)){
+                    return false;
+                }
+                //LATE TO TIMEOUT, STOP THE LISTENER WITHOUT WRITING THE VOTE
+                this.listening = false;
+                this.cleanRound(recordRoundNumber);
+                this.evaluate(recordMessage);
+                if (this.onEvaluating()){
+                    this.onConsensus();
+                }
+            }
+            return true;
+        }
+        if (recordRoundNumber == this.roundNumber + 1){
+            //stopHeartbeatSender()
+            this.leading = false;
+            this.abandonPreVote();
+            this.checkVoteSuppression(recordMessage);
+            if (listening){
+                //heartbeatListenerThread IS JOINED, THE CONSUMER BLOCKS UNTIL THE LISTENER TIMES OUT
+                if (simulator.now() < listenerDeadline){
+                    this.busyUntil = listenerDeadline;
+                    return false;
+                }
+                this.onListenerTimeout();
+            }
+            if (!this.awaitPendingVote(recordMessage)){
+                return false;
+            }
+            this.cleanRound(recordRoundNumber);
+        }
+        if (recordMessage.startsWith("ALIVE")){
+            if (this.roundNumber == recordRoundNumber){
+                //OWN HEARTBEATS OF THE LEADER AND HEARTBEATS BEFORE A LISTENER IS STARTED ARE IGNORED
+                this.handleHeartbeat();
+            }
+            else if (recordRoundNumber > this.roundNumber){
+                this.fail("Error: ALIVE with wrong round number");
+            }
+            //HEARTBEATS OF THE OLD LEADER IN FLIGHT WHEN THE NEW ROUND STARTED ARE IGNORED
+        }
+        else if (this.roundNumber == recordRoundNumber){
+            this.evaluate(recordMessage);
+            if (this.onEvaluating()){
+                this.onConsensus();
+            }
+        }
+        else{
+            this.fail("Error: Js record with wrong round number");
+        }
+        return true;
+    }
+
+    private void participate(int lastRoundNumber, List<String> lastRoundJsCodes){
+        this.roundNumber = lastRoundNumber;
+        this.alivePrefix = roundNumber + ",ALIVE";
+        this.resetEvaluation();
+        if (lastRoundJsCodes.isEmpty()){
+            this.joiningState = roundStatuses.NEW;
+            this.writeVote(this.roundNumber, this.drawRank());
+        }
+        else{
+            for (String code : lastRoundJsCodes){
+                this.observeMember(this.roundNumber, code);
+                this.evaluate(code);
+            }
+            if (roundTimeout){
+                this.joiningState = roundStatuses.FINISHED;
+                this.startHeartbeatListener();
+            }
+            else{
+                this.joiningState = roundStatuses.ONGOING;
+                int maxRank = 0;
+                for (String code : lastRoundJsCodes){
+                    maxRank = Math.max(maxRank, RoundTracker.parseVoteRank(code));
+                }
+                int nodeRank = this.drawRank();
+                if (nodeRank > maxRank){
+                    this.writeVote(this.roundNumber, nodeRank);
+                }
+            }
+        }
+    }
+
+    private boolean onEvaluating(){
+        if (electedLeader != null){
+            return false;
+        }
+        if (nodeId.equals(firstCandidate) && !timeoutCounted){
+            //sleep(timeout) ON THE CONSUMER THREAD BEFORE CLOSING THE VOTE COUNTING
+            this.timeoutCounted = true;
+            this.busyUntil = simulator.now() + VOTE_CLOSING_TIMEOUT;
+            final int round = this.roundNumber;
+            simulator.schedule(busyUntil, () -> {
+                if (alive){
+                    simulator.write(this, round + "/timeout", round + "," + RoundTracker.TIMEOUT_RECORD);
+                }
+            });
+            return false;
+        }
+        return roundTimeout;
+    }
+
+    private void onConsensus(){
+        this.electedLeader = String.valueOf(bestCandidate);
+        simulator.onConsensus(this, roundNumber, electedLeader);
+        if (electedLeader.equals(nodeId)){
+            //startHeartbeatSender() STARTS A SENDER THREAD, THE LEADER KEEPS CONSUMING
+            this.leading = true;
+            simulator.onHeartbeatSenderStarted(this, roundNumber);
+            this.sendHeartbeat(roundNumber);
+        }
+        else{
+            this.startHeartbeatListener();
+        }
+    }
+
+    private void sendHeartbeat(final int round){
+        if (!alive || !leading || round != roundNumber){
+            return;
+        }
+        simulator.write(this, round + "/ALIVE", round + ",ALIVE," + nodeId);
+        simulator.schedule(simulator.now() + HEARTBEAT_INTERVAL, () -> sendHeartbeat(round));
+    }
+
+    private void startHeartbeatListener(){
+        this.listening = true;
+        this.listenerDeadline = simulator.now() + HEARTBEAT_TIMEOUT;
+        this.scheduleListenerCheck();
+    }
+
+    private void scheduleListenerCheck(){
+        final long deadline = listenerDeadline;
+        simulator.schedule(deadline, () -> {
+            if (alive && listening){
+                catchUpHeartbeats();
+                if (simulator.now() < listenerDeadline){
+                    scheduleListenerCheck();
+                }
+                else{
+                    onListenerTimeout();
+                }
+            }
+        });
+    }
+
+    private void handleHeartbeat(){
+        this.suspects.clear();
+        if (listening){
+            this.listenerDeadline = simulator.now() + HEARTBEAT_TIMEOUT;
+        }
+        else if (suspecting){
+            //preVote() RETURNS LEADER_ALIVE, THE LISTENER KEEPS LISTENING
+            this.suspecting = false;
+            this.startHeartbeatListener();
+        }
+    }
+
+    /**
+     * preVote() of the listener
+     */
+    private void onListenerTimeout(){
+        this.listening = false;
+        if (PRE_VOTE_QUORUM <= 1){
+            this.startVote();
+            return;
+        }
+        if (abandonedPreVoteRound >= roundNumber){
+            return;
+        }
+        this.suspecting = true;
+        simulator.write(this, roundNumber + "/suspect/" + nodeId, roundNumber + "," + RoundTracker.SUSPECT_PREFIX +
+                nodeId);
+        this.checkPreVoteQuorum();
+        if (!suspecting || PRE_VOTE_TIMEOUT <= 0){
+            return;
+        }
+        final long deadline = simulator.now() + PRE_VOTE_TIMEOUT;
+        this.preVoteDeadline = deadline;
+        simulator.schedule(deadline, () -> {
+            if (alive && suspecting && preVoteDeadline == deadline){
+                //NOT ENOUGH SUSPICIONS AND NO HEARTBEATS, ESCALATE
+                this.suspecting = false;
+                this.startVote();
+            }
+        });
+    }
+
+    private void onSuspicion(int recordRoundNumber, String suspect){
+        if (recordRoundNumber == roundNumber && suspects.add(suspect)){
+            this.checkPreVoteQuorum();
+        }
+    }
+
+    /**
+     * Vote once the quorum of getPreVoteQuorum() suspects the leader
+     */
+    private void checkPreVoteQuorum(){
+        if (suspecting && suspects.size() >= this.getPreVoteQuorum()){
+            this.suspecting = false;
+            this.startVote();
+        }
+    }
+
+    /**
+     * PRE_VOTE_QUORUM capped by the followers which wrote records in the current or previous round, as
+     * LeaderCandidate.getPreVoteQuorum()
+     */
+    private int getPreVoteQuorum(){
+        String leader = electedLeader != null ? electedLeader : heartbeatLeader;
+        int followers = 1; //THIS NODE
+        for (Map.Entry<String, Integer> memberRound : memberRounds.entrySet()){
+            String member = memberRound.getKey();
+            if (memberRound.getValue() >= roundNumber - 1 && !member.equals(nodeId) && !member.equals(leader)){
+                followers++;
+            }
+        }
+        return Math.max(1, Math.min(PRE_VOTE_QUORUM, followers));
+    }
+
+    /**
+     * Record the round of a vote, SUSPECT or ALIVE record of a member, as LeaderCandidate.observeMember()
+     */
+    private void observeMember(int recordRoundNumber, String recordMessage){
+        String member;
+        if (recordMessage.startsWith(RoundTracker.SUSPECT_PREFIX)){
+            member = recordMessage.substring(RoundTracker.SUSPECT_PREFIX.length());
+        }
+        else if (recordMessage.startsWith("ALIVE,")){
+            member = recordMessage.substring("ALIVE,".length());
+            this.heartbeatLeader = member;
+        }
+        else {
+            member = RoundTracker.parseVoteClient(recordMessage);
+        }
+        if (member != null){
+            Integer memberRound = memberRounds.get(member);
+            if (memberRound == null || memberRound < recordRoundNumber){
+                memberRounds.put(member, recordRoundNumber);
+            }
+        }
+    }
+
+    private void abandonPreVote(){
+        this.abandonedPreVoteRound = Math.max(abandonedPreVoteRound, roundNumber);
+        this.suspecting = false;
+    }
+
+    private void startVote(){
+        this.electedLeader = null;
+        //participateToNewRound() WAITS FOR THE BACKOFF OF ITS RANK
+        final int round = this.roundNumber + 1;
+        final int nodeRank = this.drawRank();
+        this.pendingVoteRank = nodeRank;
+        this.voteTime = simulator.now() + (MAX_RANK - nodeRank) * VOTE_BACKOFF;
+        simulator.schedule(voteTime, () -> {
+            if (alive && pendingVoteRank == nodeRank){
+                this.pendingVoteRank = 0;
+                this.writeVote(round, nodeRank);
+            }
+        });
+    }
+
+    /**
+     * suppressVote() of the first record of the new round, checked once even if the record is delivered again
+     * after a stall
+     */
+    private void checkVoteSuppression(String recordMessage){
+        if (suppressionCheckedOffset == nextOffset){
+            return;
+        }
+        this.suppressionCheckedOffset = nextOffset;
+        if (pendingVoteRank > 0 && RoundTracker.parseVoteRank(recordMessage) >= pendingVoteRank){
+            this.pendingVoteRank = 0;
+        }
+    }
+
+    /**
+     * heartbeatListenerThread IS JOINED, THE CONSUMER BLOCKS UNTIL participateToNewRound() WROTE OR SUPPRESSED
+     * THE VOTE
+     *
+     * @return whether the consumer can go on, false if it stalls until the vote is written
+     */
+    private boolean awaitPendingVote(String recordMessage){
+        this.checkVoteSuppression(recordMessage);
+        if (pendingVoteRank > 0 && simulator.now() < voteTime){
+            this.busyUntil = voteTime;
+            return false;
+        }
+        return true;
+    }
+
+    private void cleanRound(int roundNumber){
+        this.roundNumber = roundNumber;
+        this.alivePrefix = roundNumber + ",ALIVE";
+        this.joiningState = null;
+        this.timeoutCounted = false;
+        this.electedLeader = null;
+        this.suspects.clear();
+        this.memberRounds.values().removeIf(memberRound -> memberRound < roundNumber - 1);
+        this.resetEvaluation();
+    }
+
+    private int drawRank(){
+        return 1 + random.nextInt(MAX_RANK);
+    }
+
+    private void writeVote(int round, int nodeRank){
+        simulator.write(this, round + "/vote/" + nodeId, round + ",if(!result.timeout){nodeRanks.push({client:\"" +
+                nodeId + "\",rank:" + nodeRank + "});}");
+    }
+
+    private void resetEvaluation(){
+        this.firstCandidate = null;
+        this.bestCandidate = null;
+        this.bestRank = 0;
+        this.roundTimeout = false;
+    }
+
+    /**
+     * Native equivalent of appending a record to runtimeJsCode and evaluating evaluationJsCode
+     *
+     * @param message Javascript record without the round number
+     */
+    private void evaluate(String message){
+        if (message.equals(RoundTracker.TIMEOUT_RECORD)){
+            this.roundTimeout = true;
+            return;
+        }
+        String client = RoundTracker.parseVoteClient(message);
+        if (client == null || roundTimeout){
+            return;
+        }
+        int rank = RoundTracker.parseVoteRank(message);
+        if (firstCandidate == null){
+            this.firstCandidate = client;
+        }
+        if (rank > bestRank){
+            this.bestRank = rank;
+            this.bestCandidate = client;
+        }
+    }
+}
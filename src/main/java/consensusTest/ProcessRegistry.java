@@ -0,0 +1,106 @@
+package consensusTest;
+
+import leaderElection.LeaderCandidate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Thread safe registry of running LeaderCandidates
+ * Node ids are kept in an array list indexed by a hash map, so that adding, removing and picking a random
+ * process are O(1)
+ */
+public class ProcessRegistry {
+
+    /**
+     * A registered process
+     */
+    public static final class Entry {
+        private final String nodeId;
+        private final LeaderCandidate leaderCandidate;
+
+        private Entry(String nodeId, LeaderCandidate leaderCandidate){
+            this.nodeId = nodeId;
+            this.leaderCandidate = leaderCandidate;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public LeaderCandidate getLeaderCandidate() {
+            return leaderCandidate;
+        }
+    }
+
+    private final List<Entry> entries;
+    private final HashMap<String, Integer> indexes;
+
+    public ProcessRegistry(){
+        this.entries = new ArrayList<>();
+        this.indexes = new HashMap<>();
+    }
+
+    /**
+     * Register a started process
+     *
+     * @param nodeId id of the LeaderCandidate
+     * @param leaderCandidate started LeaderCandidate
+     */
+    public synchronized void add(String nodeId, LeaderCandidate leaderCandidate){
+        indexes.put(nodeId, entries.size());
+        entries.add(new Entry(nodeId, leaderCandidate));
+    }
+
+    /**
+     * Remove a process by swapping it with the last entry
+     *
+     * @param nodeId id of the LeaderCandidate
+     * @return removed entry, null if there is no process with nodeId
+     */
+    public synchronized Entry remove(String nodeId){
+        Integer index = indexes.remove(nodeId);
+        if (index == null){
+            return null;
+        }
+        Entry removed = entries.get(index);
+        Entry last = entries.remove(entries.size() - 1);
+        if (last != removed){
+            entries.set(index, last);
+            indexes.put(last.nodeId, index);
+        }
+        return removed;
+    }
+
+    /**
+     * Pick and remove a random process other than the excluded one in a single atomic step
+     *
+     * @param random random number generator
+     * @param excludedNodeId id of a process which must not be picked, can be null
+     * @return removed entry, null if there is no process other than the excluded one
+     */
+    public synchronized Entry removeRandom(Random random, String excludedNodeId){
+        Integer excludedIndex = excludedNodeId == null ? null : indexes.get(excludedNodeId);
+        //DRAW UNIFORMLY AMONG THE OTHER PROCESSES BY SKIPPING OVER THE SLOT OF THE EXCLUDED ONE
+        int size = excludedIndex == null ? entries.size() : entries.size() - 1;
+        if (size <= 0){
+            return null;
+        }
+        int index = random.nextInt(size);
+        if (excludedIndex != null && index >= excludedIndex){
+            index++;
+        }
+        return remove(entries.get(index).nodeId);
+    }
+
+    /**
+     * Get number of registered processes
+     *
+     * @return number of registered processes
+     */
+    public synchronized int size(){
+        return entries.size();
+    }
+}
@@ -0,0 +1,115 @@
+package consensusTest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per round timeline of leader elections observed by LeaderElectionTester
+ * Times are epoch milliseconds, Kafka record timestamps for first vote and timeout, tester clock for
+ * elected (when the tester evaluated the election) and leader death (when the tester killed the leader)
+ */
+public class RoundTimeline {
+
+    private static final class Round {
+        private String leader;
+        private int votes;
+        private long firstVote = -1, timeout = -1, elected = -1, leaderDeath = -1;
+    }
+
+    private final TreeMap<Integer, Round> rounds;
+
+    public RoundTimeline(){
+        this.rounds = new TreeMap<>();
+    }
+
+    private Round round(int roundNumber){
+        Round round = rounds.get(roundNumber);
+        if (round == null){
+            round = new Round();
+            rounds.put(roundNumber, round);
+        }
+        return round;
+    }
+
+    /**
+     * Record a vote
+     *
+     * @param roundNumber round number of the vote
+     * @param timestamp Kafka timestamp of the vote record
+     */
+    public synchronized void onVote(int roundNumber, long timestamp){
+        Round round = round(roundNumber);
+        round.votes++;
+        if (round.firstVote < 0){
+            round.firstVote = timestamp;
+        }
+    }
+
+    /**
+     * Record closing of the vote counting
+     *
+     * @param roundNumber round number of the timeout record
+     * @param timestamp Kafka timestamp of the timeout record
+     */
+    public synchronized void onTimeout(int roundNumber, long timestamp){
+        Round round = round(roundNumber);
+        if (round.timeout < 0){
+            round.timeout = timestamp;
+        }
+    }
+
+    /**
+     * Record the election of a leader
+     *
+     * @param roundNumber round number of the election
+     * @param leader id of the elected leader
+     * @param time time at which the election is observed
+     */
+    public synchronized void onElected(int roundNumber, String leader, long time){
+        Round round = round(roundNumber);
+        if (round.elected < 0){
+            round.leader = leader;
+            round.elected = time;
+        }
+    }
+
+    /**
+     * Record the death of the leader of a round
+     *
+     * @param roundNumber round number in which the leader was elected
+     * @param time time at which the leader is killed
+     */
+    public synchronized void onLeaderDeath(int roundNumber, long time){
+        Round round = round(roundNumber);
+        if (round.leaderDeath < 0){
+            round.leaderDeath = time;
+        }
+    }
+
+    /**
+     * Write the timeline as CSV, one line per round
+     *
+     * @param path path of the CSV file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void exportCsv(String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+            writer.println("round,leader,votes,first_vote_ms,timeout_ms,elected_ms,leader_death_ms");
+            for (Map.Entry<Integer, Round> entry : rounds.entrySet()) {
+                Round round = entry.getValue();
+                writer.println(entry.getKey() + "," + (round.leader == null ? "" : round.leader) + "," +
+                        round.votes + "," + blankIfUnset(round.firstVote) + "," + blankIfUnset(round.timeout) +
+                        "," + blankIfUnset(round.elected) + "," + blankIfUnset(round.leaderDeath));
+            }
+        }
+    }
+
+    private static String blankIfUnset(long time){
+        return time < 0 ? "" : String.valueOf(time);
+    }
+}
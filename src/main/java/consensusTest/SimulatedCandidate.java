@@ -0,0 +1,115 @@
+package consensusTest;
+
+import leaderElection.LeaderCandidate;
+import leaderElection.LeadershipListener;
+
+import java.util.Random;
+
+/**
+ * LeaderCandidate run by ElectionSimulator with -DrealCandidates=true
+ * Runs the real LeaderCandidate, HeartbeatListener and evaluationJsCode of LeaderElectionTester over a
+ * SimulatedConsumer and a SimulatedProducer, with the SimulatedScheduler of the simulation as clock and threads.
+ * Elections and heartbeat senders are reported to the simulation for its safety checks. A killed candidate is
+ * terminated and the records it writes afterwards are dropped, as if its process crashed.
+ */
+class SimulatedCandidate implements SimulatedNode, LeadershipListener {
+    private final ElectionSimulator simulator;
+    private final SimulatedScheduler scheduler;
+    private final SimulatedConsumer consumer;
+    private final LeaderCandidate candidate;
+    private final String nodeId;
+    private boolean running, killed;
+
+    /**
+     * Constructor
+     *
+     * @param simulator simulation running the candidate
+     * @param scheduler scheduler of the simulation
+     * @param log log of the simulation
+     * @param nodeId unique id of the candidate
+     * @param random source of ranks and CHECK records of the candidate
+     */
+    SimulatedCandidate(ElectionSimulator simulator, SimulatedScheduler scheduler, SimulatedLog log, String nodeId,
+                       Random random){
+        this.simulator = simulator;
+        this.scheduler = scheduler;
+        this.nodeId = nodeId;
+        this.consumer = new SimulatedConsumer(simulator, scheduler, log);
+        this.candidate = new LeaderCandidate(nodeId, LeaderElectionTester.INITIAL_JS_CODE,
+                LeaderElectionTester.EVALUATION_JS_CODE, consumer, new SimulatedProducer(simulator, this),
+                SimulatedLog.PARTITION.topic(), scheduler, random);
+        //LISTENERS RUN ON THE THREADS OF THE CANDIDATE, SO THAT THE SIMULATION SEES THEM IN VIRTUAL TIME
+        this.candidate.setNotificationExecutor(Runnable::run);
+        this.candidate.addListener(this);
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Whether the consumer thread of the candidate is running and the candidate is not killed
+     *
+     * @return whether the candidate is alive
+     */
+    @Override
+    public boolean isAlive() {
+        return running && !killed;
+    }
+
+    @Override
+    public boolean isKilled() {
+        return killed;
+    }
+
+    /**
+     * Start the consumer thread of the candidate, which writes its CHECK record
+     */
+    @Override
+    public void start(){
+        this.running = true;
+        scheduler.start(() -> {
+            candidate.run();
+            this.running = false;
+            simulator.onStopped(this, "consumer thread stopped");
+        }, nodeId + "_Consumer", false);
+    }
+
+    /**
+     * Crash the candidate
+     * Its threads are terminated in virtual time and their writes are dropped
+     */
+    @Override
+    public void kill(){
+        this.killed = true;
+        consumer.crash();
+        candidate.setTerminate(true);
+    }
+
+    @Override
+    public void onAppend(int offset){
+        if (running){
+            consumer.onAppend(offset);
+        }
+    }
+
+    @Override
+    public void stallConsumer(long until){
+        consumer.stall(until);
+    }
+
+    @Override
+    public void onElected(int roundNumber) {
+        if (!killed){
+            simulator.onHeartbeatSenderStarted(this, roundNumber);
+        }
+    }
+
+    @Override
+    public void onLeaderChanged(int roundNumber, String leader) {
+        if (!killed && leader != null){
+            simulator.onConsensus(this, roundNumber, leader);
+        }
+    }
+}
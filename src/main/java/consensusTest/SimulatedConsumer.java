@@ -0,0 +1,120 @@
+package consensusTest;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consumer of a SimulatedCandidate, reading the SimulatedLog on the virtual clock of an ElectionSimulator
+ * A record becomes visible a consume delay after it is appended, in the order of the log. poll blocks the polling
+ * thread in virtual time until visible records are available or the timeout passes, and returns no records while
+ * the consumer is stalled.
+ */
+class SimulatedConsumer extends MockConsumer<String, String> {
+    private static final int MAX_POLL_RECORDS = 500;
+    private final ElectionSimulator simulator;
+    private final SimulatedScheduler scheduler;
+    private final SimulatedLog log;
+    private final ArrayDeque<Long> visibleTimes; //VISIBLE TIMES OF THE RECORDS FROM visibleOffset, IN LOG ORDER
+    private int position, visibleOffset;
+    private long lastVisibleTime, stalledUntil;
+    private Thread pollingThread;
+    private boolean crashed;
+
+    /**
+     * Constructor
+     * Records appended before the consumer is created are already visible
+     *
+     * @param simulator simulation giving the virtual clock and the consume delays
+     * @param scheduler scheduler of the polling thread
+     * @param log log to read
+     */
+    SimulatedConsumer(ElectionSimulator simulator, SimulatedScheduler scheduler, SimulatedLog log){
+        super(OffsetResetStrategy.EARLIEST);
+        this.simulator = simulator;
+        this.scheduler = scheduler;
+        this.log = log;
+        this.visibleTimes = new ArrayDeque<>();
+        this.visibleOffset = log.size();
+        this.assign(Collections.singleton(SimulatedLog.PARTITION));
+    }
+
+    /**
+     * Schedule the delivery of a record appended to the log
+     *
+     * @param offset offset of the appended record
+     */
+    void onAppend(int offset){
+        if (crashed){
+            return;
+        }
+        long visibleTime = Math.max(lastVisibleTime, simulator.now() + simulator.consumeDelay());
+        this.lastVisibleTime = visibleTime;
+        visibleTimes.add(visibleTime);
+        simulator.schedule(visibleTime, this::deliver);
+    }
+
+    private void deliver(){
+        while (!visibleTimes.isEmpty() && visibleTimes.peek() <= simulator.now()){
+            visibleTimes.poll();
+            visibleOffset++;
+        }
+        this.wakePollingThread();
+    }
+
+    /**
+     * Return no records until a virtual time, as a consumer which is paused or partitioned from Kafka
+     *
+     * @param until virtual time in milliseconds
+     */
+    void stall(long until){
+        this.stalledUntil = Math.max(stalledUntil, until);
+        simulator.schedule(until, this::wakePollingThread);
+    }
+
+    /**
+     * Stop delivering records, polls return immediately without records
+     */
+    void crash(){
+        this.crashed = true;
+        if (pollingThread != null){
+            scheduler.unpark(pollingThread);
+        }
+    }
+
+    private void wakePollingThread(){
+        if (pollingThread != null && position < visibleOffset && simulator.now() >= stalledUntil){
+            scheduler.unpark(pollingThread);
+        }
+    }
+
+    @Override
+    public ConsumerRecords<String, String> poll(Duration timeout) {
+        long deadline = simulator.now() + timeout.toMillis();
+        while (!crashed){
+            boolean available = position < visibleOffset;
+            if (available && simulator.now() >= stalledUntil){
+                int end = Math.min(visibleOffset, position + MAX_POLL_RECORDS);
+                List<ConsumerRecord<String, String>> records = new ArrayList<>(end - position);
+                while (position < end){
+                    records.add(log.record(position++));
+                }
+                return new ConsumerRecords<>(Collections.singletonMap(SimulatedLog.PARTITION, records));
+            }
+            if (simulator.now() >= deadline){
+                break;
+            }
+            this.pollingThread = Thread.currentThread();
+            scheduler.parkUntil(available ? Math.min(deadline, stalledUntil) : deadline);
+            this.pollingThread = null;
+        }
+        return ConsumerRecords.empty();
+    }
+}
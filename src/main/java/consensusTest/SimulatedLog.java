@@ -0,0 +1,107 @@
+package consensusTest;
+
+import leaderElection.RoundTracker;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory, append only replacement of the single partition Kafka log used by ElectionSimulator
+ * Records are kept as ConsumerRecords, which are returned to every SimulatedConsumer reading them. Keeps an index
+ * of the Javascript records so that a joining NativeCandidate can find the latest round before its CHECK record
+ * without replaying the whole log
+ */
+class SimulatedLog {
+    static final TopicPartition PARTITION = new TopicPartition("simulatedElection", 0);
+    private final List<ConsumerRecord<String, String>> records;
+
+    private int[] jsOffsets, jsRounds, jsMaxRounds;
+    private int jsSize;
+
+    SimulatedLog(){
+        this.records = new ArrayList<>();
+        this.jsOffsets = new int[256];
+        this.jsRounds = new int[256];
+        this.jsMaxRounds = new int[256];
+    }
+
+    /**
+     * Append a record to the end of the log
+     *
+     * @param time virtual time of the append, used as the timestamp of the record
+     * @param key key of the record
+     * @param value record written by a candidate, null for a tombstone
+     * @return offset of the appended record
+     */
+    int append(long time, String key, String value){
+        int offset = records.size();
+        records.add(new ConsumerRecord<>(PARTITION.topic(), PARTITION.partition(), offset, time,
+                TimestampType.LOG_APPEND_TIME, -1L, -1, -1, key, value));
+        if (value != null && !value.startsWith("CHECK,")){
+            String[] recordContent = value.split(",", 2);
+            if (!RoundTracker.isSignal(recordContent[1])){
+                this.index(offset, Integer.parseInt(recordContent[0]));
+            }
+        }
+        return offset;
+    }
+
+    private void index(int offset, int round){
+        if (jsSize == jsOffsets.length){
+            jsOffsets = Arrays.copyOf(jsOffsets, jsSize * 2);
+            jsRounds = Arrays.copyOf(jsRounds, jsSize * 2);
+            jsMaxRounds = Arrays.copyOf(jsMaxRounds, jsSize * 2);
+        }
+        jsOffsets[jsSize] = offset;
+        jsRounds[jsSize] = round;
+        jsMaxRounds[jsSize] = jsSize == 0 ? round : Math.max(round, jsMaxRounds[jsSize - 1]);
+        jsSize++;
+    }
+
+    int size() {
+        return records.size();
+    }
+
+    ConsumerRecord<String, String> record(int offset) {
+        return records.get(offset);
+    }
+
+    String value(int offset) {
+        return records.get(offset).value();
+    }
+
+    long appendTime(int offset) {
+        return records.get(offset).timestamp();
+    }
+
+    /**
+     * Collect the Javascript records of the highest round written before checkOffset, the same way
+     * LeaderCandidate does while it is looking for its CHECK record
+     *
+     * @param checkOffset offset of the CHECK record of the joining candidate
+     * @param roundCodes list to which the records (without round numbers) of the latest round are added
+     * @return latest round number, 0 if there is no Javascript record before checkOffset
+     */
+    int latestRoundBefore(int checkOffset, List<String> roundCodes){
+        int index = Arrays.binarySearch(jsOffsets, 0, jsSize, checkOffset);
+        int last = index >= 0 ? index - 1 : -index - 2;
+        if (last < 0){
+            return 0;
+        }
+        int latestRound = jsMaxRounds[last];
+        List<String> reversed = new ArrayList<>();
+        for (int i = last; i >= 0 && jsMaxRounds[i] == latestRound; i--){
+            if (jsRounds[i] == latestRound){
+                reversed.add(value(jsOffsets[i]).split(",", 2)[1]);
+            }
+        }
+        Collections.reverse(reversed);
+        roundCodes.addAll(reversed);
+        return latestRound;
+    }
+}
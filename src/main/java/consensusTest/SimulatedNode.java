@@ -0,0 +1,44 @@
+package consensusTest;
+
+/**
+ * Leader candidate run by ElectionSimulator
+ * Implemented by NativeCandidate, a native copy of the LeaderCandidate state machine, and by SimulatedCandidate,
+ * which runs the real LeaderCandidate
+ */
+interface SimulatedNode {
+
+    String getNodeId();
+
+    /**
+     * Whether the candidate is consuming and not killed
+     *
+     * @return whether the candidate is alive
+     */
+    boolean isAlive();
+
+    boolean isKilled();
+
+    /**
+     * Start the candidate, which writes its CHECK record
+     */
+    void start();
+
+    /**
+     * Crash the candidate, the records it writes afterwards are dropped
+     */
+    void kill();
+
+    /**
+     * Notification of a newly appended record
+     *
+     * @param offset offset of the appended record
+     */
+    void onAppend(int offset);
+
+    /**
+     * Stall the consumer, as a slow or lagging consumer which reads no records until the given time
+     *
+     * @param until virtual time in milliseconds
+     */
+    void stallConsumer(long until);
+}
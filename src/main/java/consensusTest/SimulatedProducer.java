@@ -0,0 +1,39 @@
+package consensusTest;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Producer of a SimulatedCandidate, appending records to the SimulatedLog of an ElectionSimulator after a produce
+ * delay. Records written after the candidate is killed are dropped.
+ */
+class SimulatedProducer extends MockProducer<String, String> {
+    private final ElectionSimulator simulator;
+    private final SimulatedCandidate writer;
+
+    /**
+     * Constructor
+     *
+     * @param simulator simulation appending the records
+     * @param writer candidate writing the records
+     */
+    SimulatedProducer(ElectionSimulator simulator, SimulatedCandidate writer){
+        super(true, new StringSerializer(), new StringSerializer());
+        this.simulator = simulator;
+        this.writer = writer;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+        if (!writer.isKilled()){
+            simulator.write(writer, record.key(), record.value());
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+}
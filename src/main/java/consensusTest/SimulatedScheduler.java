@@ -0,0 +1,241 @@
+package consensusTest;
+
+import leaderElection.ElectionScheduler;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * ElectionScheduler of the LeaderCandidates of an ElectionSimulator
+ * Threads of the candidates are Java threads, but only one of them or the event loop of the simulation runs at a
+ * time. A thread runs until it sleeps, waits, joins or polls its SimulatedConsumer, and is resumed by an event of
+ * the simulation, so that an execution only depends on the seed. Sleeps and waits take virtual time.
+ * Threads of the candidates should be interrupted through the scheduler only.
+ */
+class SimulatedScheduler implements ElectionScheduler {
+    private static final Logger LOGGER = Logger.getLogger(SimulatedScheduler.class);
+    private static final long NEVER = -1;
+
+    private static final class SimulatedThread {
+        private final Object lock = new Object();
+        private final List<SimulatedThread> joiners = new ArrayList<>();
+        private Thread thread;
+        private Object parkMonitor;
+        private boolean resumed; //GUARDED BY parkMonitor
+        private boolean parked, interruptible, interrupted;
+        private long parkCount;
+    }
+
+    private final ElectionSimulator simulator;
+    private final Semaphore loopTurn;
+    //ONLY ACCESSED BY THE RUNNING THREAD, THE HANDOVER OF loopTurn ORDERS THE ACCESSES
+    private final Map<Thread, SimulatedThread> threads;
+    private final Map<Object, List<SimulatedThread>> waiters;
+
+    /**
+     * Constructor
+     *
+     * @param simulator simulation which schedules the events resuming the threads
+     */
+    SimulatedScheduler(ElectionSimulator simulator){
+        this.simulator = simulator;
+        this.loopTurn = new Semaphore(0);
+        this.threads = new HashMap<>();
+        this.waiters = new IdentityHashMap<>();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return simulator.now();
+    }
+
+    @Override
+    public void sleep(long millis) throws InterruptedException {
+        SimulatedThread current = this.current();
+        this.checkInterrupt(current);
+        synchronized (current.lock){
+            this.park(current, current.lock, simulator.now() + Math.max(0, millis), true);
+        }
+        this.checkInterrupt(current);
+    }
+
+    @Override
+    public void await(Object monitor, long timeoutMillis) throws InterruptedException {
+        SimulatedThread current = this.current();
+        this.checkInterrupt(current);
+        waiters.computeIfAbsent(monitor, waiting -> new ArrayList<>()).add(current);
+        this.park(current, monitor, timeoutMillis > 0 ? simulator.now() + timeoutMillis : NEVER, true);
+        List<SimulatedThread> waiting = waiters.get(monitor);
+        if (waiting != null && waiting.remove(current) && waiting.isEmpty()){
+            waiters.remove(monitor);
+        }
+        this.checkInterrupt(current);
+    }
+
+    @Override
+    public void signalAll(Object monitor) {
+        List<SimulatedThread> waiting = waiters.remove(monitor);
+        if (waiting != null){
+            waiting.forEach(this::wake);
+        }
+    }
+
+    @Override
+    public Thread start(Runnable task, String name, boolean daemon) {
+        final SimulatedThread started = new SimulatedThread();
+        //THREADS OF AN UNFINISHED SIMULATION DO NOT KEEP THE JVM RUNNING
+        Thread thread = new Thread(() -> {
+            synchronized (started.lock){
+                this.awaitResume(started, started.lock);
+            }
+            try {
+                task.run();
+            } catch (Throwable throwable) {
+                LOGGER.error(Thread.currentThread().getName() + " failed :", throwable);
+            } finally {
+                this.finish(started);
+            }
+        }, name);
+        thread.setDaemon(true);
+        started.thread = thread;
+        started.parked = true;
+        started.parkMonitor = started.lock;
+        threads.put(thread, started);
+        thread.start();
+        this.wake(started);
+        return thread;
+    }
+
+    @Override
+    public void interrupt(Thread thread) {
+        SimulatedThread interrupted = threads.get(thread);
+        if (interrupted == null){
+            return;
+        }
+        interrupted.interrupted = true;
+        if (interrupted.parked && interrupted.interruptible){
+            this.wake(interrupted);
+        }
+    }
+
+    @Override
+    public void join(Thread thread) throws InterruptedException {
+        SimulatedThread current = this.current();
+        this.checkInterrupt(current);
+        SimulatedThread joined = threads.get(thread);
+        if (joined == null){
+            return;
+        }
+        joined.joiners.add(current);
+        synchronized (current.lock){
+            this.park(current, current.lock, NEVER, true);
+        }
+        joined.joiners.remove(current);
+        this.checkInterrupt(current);
+    }
+
+    @Override
+    public boolean isAlive(Thread thread) {
+        return thread != null && threads.containsKey(thread);
+    }
+
+    /**
+     * Block the calling thread without interruption until a virtual time or until unpark is called
+     *
+     * @param time virtual time in milliseconds
+     */
+    void parkUntil(long time){
+        SimulatedThread current = this.current();
+        synchronized (current.lock){
+            this.park(current, current.lock, time, false);
+        }
+    }
+
+    /**
+     * Resume a thread blocked in parkUntil at the current virtual time
+     *
+     * @param thread blocked thread
+     */
+    void unpark(Thread thread){
+        SimulatedThread parked = threads.get(thread);
+        if (parked != null){
+            this.wake(parked);
+        }
+    }
+
+    private SimulatedThread current(){
+        SimulatedThread current = threads.get(Thread.currentThread());
+        if (current == null){
+            throw new IllegalStateException(Thread.currentThread().getName() + " is not a thread of the simulation");
+        }
+        return current;
+    }
+
+    private void checkInterrupt(SimulatedThread current) throws InterruptedException {
+        if (current.interrupted){
+            current.interrupted = false;
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Hand the turn back to the event loop and block until an event resumes the thread
+     * Should be called holding the monitor
+     */
+    private void park(SimulatedThread current, Object monitor, long wakeTime, boolean interruptible){
+        current.parked = true;
+        current.parkMonitor = monitor;
+        current.interruptible = interruptible;
+        final long parkCount = ++current.parkCount;
+        if (wakeTime != NEVER){
+            simulator.schedule(wakeTime, () -> this.resume(current, parkCount));
+        }
+        loopTurn.release();
+        this.awaitResume(current, monitor);
+    }
+
+    private void awaitResume(SimulatedThread current, Object monitor){
+        while (!current.resumed){
+            try {
+                monitor.wait();
+            } catch (InterruptedException e) {
+                //INTERRUPTS GO THROUGH interrupt(), NOT THROUGH THE JAVA THREAD
+            }
+        }
+        current.resumed = false;
+    }
+
+    private void wake(SimulatedThread parked){
+        if (parked.parked){
+            final long parkCount = parked.parkCount;
+            simulator.schedule(simulator.now(), () -> this.resume(parked, parkCount));
+        }
+    }
+
+    /**
+     * Run a parked thread until it parks again or finishes, called by the event loop
+     */
+    private void resume(SimulatedThread parked, long parkCount){
+        if (!parked.parked || parked.parkCount != parkCount){
+            //ALREADY RESUMED BY ANOTHER EVENT
+            return;
+        }
+        parked.parked = false;
+        synchronized (parked.parkMonitor){
+            parked.resumed = true;
+            parked.parkMonitor.notifyAll();
+        }
+        loopTurn.acquireUninterruptibly();
+    }
+
+    private void finish(SimulatedThread finished){
+        threads.remove(finished.thread);
+        finished.joiners.forEach(this::wake);
+        loopTurn.release();
+    }
+}
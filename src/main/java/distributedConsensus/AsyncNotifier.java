@@ -0,0 +1,91 @@
+package distributedConsensus;
+
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers notifications of a consensus application to its listeners on an executor, so that the consumer thread
+ * never runs application code
+ * Notifications are delivered serially in the order they are sent, and never dropped, since they carry state
+ * transitions. At most -DnotificationQueueSize (default 1024) notifications wait for delivery; when the queue is
+ * full, the consumer thread blocks until the listeners catch up.
+ */
+public class AsyncNotifier {
+    private static final Logger LOGGER = Logger.getLogger(AsyncNotifier.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Notifier-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final Queue<Runnable> notifications;
+    private final AtomicInteger pendingNotifications;
+    private final Semaphore slots;
+    private final Runnable drain;
+    private volatile Executor executor;
+
+    /**
+     * Constructor
+     *
+     * @param name name used in logs
+     */
+    public AsyncNotifier(String name){
+        this.name = name;
+        this.notifications = new ConcurrentLinkedQueue<>();
+        this.pendingNotifications = new AtomicInteger();
+        this.slots = new Semaphore(Integer.getInteger("notificationQueueSize", 1024));
+        this.drain = this::drain;
+        this.executor = DEFAULT_EXECUTOR;
+    }
+
+    /**
+     * Set the executor running the listeners, a shared pool of daemon threads by default
+     *
+     * @param executor executor to run the listeners
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a notification to be run after the previously sent notifications
+     * Blocks while the queue is full, so listeners must not wait for the thread sending notifications
+     *
+     * @param notification notification calling the listeners
+     */
+    public void send(Runnable notification){
+        if (!slots.tryAcquire()){
+            LOGGER.warn(name + " :: listeners are too slow, waiting for them to catch up");
+            //A LOST onDemoted OR onLockLost WOULD LEAVE THE APPLICATION ACTING ON A STALE STATE
+            slots.acquireUninterruptibly();
+        }
+        notifications.add(notification);
+        if (pendingNotifications.getAndIncrement() == 0){
+            executor.execute(drain);
+        }
+    }
+
+    /**
+     * Run the queued notifications until the queue is empty
+     */
+    private void drain(){
+        do {
+            Runnable notification = notifications.poll();
+            slots.release();
+            try {
+                notification.run();
+            } catch (RuntimeException exception) {
+                LOGGER.error(name + " :: listener failed :", exception);
+            }
+        } while (pendingNotifications.decrementAndGet() != 0);
+    }
+}
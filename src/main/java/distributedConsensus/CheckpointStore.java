@@ -0,0 +1,121 @@
+package distributedConsensus;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Durable local checkpoint of a ConsensusApplication
+ * Consumed offsets and the serialized evaluator state are written to a single file with an atomic rename,
+ * so that they are always committed together
+ */
+public class CheckpointStore {
+
+    private static final String OFFSET_PREFIX = "offset.";
+    private static final String STATE_KEY = "state";
+
+    /**
+     * Offsets and evaluator state read from a checkpoint
+     */
+    public static final class Checkpoint {
+        private final Map<Integer, Long> offsets;
+        private final String state;
+
+        private Checkpoint(Map<Integer, Long> offsets, String state){
+            this.offsets = Collections.unmodifiableMap(offsets);
+            this.state = state;
+        }
+
+        /**
+         * Get offsets of the next records to consume
+         *
+         * @return offsets by partition
+         */
+        public Map<Integer, Long> getOffsets() {
+            return offsets;
+        }
+
+        /**
+         * Get serialized evaluator state at the offsets
+         *
+         * @return evaluator state
+         */
+        public String getState() {
+            return state;
+        }
+    }
+
+    private final Path checkpointFile, temporaryFile;
+
+    /**
+     * Constructor
+     *
+     * @param checkpointDirectory directory to keep checkpoint files
+     * @param nodeId stable id of the node which owns the checkpoint
+     */
+    public CheckpointStore(String checkpointDirectory, String nodeId){
+        String fileName = nodeId.replaceAll("[^A-Za-z0-9._-]", "_");
+        this.checkpointFile = Paths.get(checkpointDirectory, fileName + ".checkpoint");
+        this.temporaryFile = Paths.get(checkpointDirectory, fileName + ".checkpoint.tmp");
+    }
+
+    /**
+     * Read the latest checkpoint
+     *
+     * @return latest checkpoint, null if there is no checkpoint
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public Checkpoint load() throws IOException {
+        if (!Files.exists(checkpointFile)){
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<Integer, Long> offsets = new HashMap<>();
+        for (String key : properties.stringPropertyNames()){
+            if (key.startsWith(OFFSET_PREFIX)){
+                offsets.put(Integer.parseInt(key.substring(OFFSET_PREFIX.length())),
+                        Long.parseLong(properties.getProperty(key)));
+            }
+        }
+        return new Checkpoint(offsets, properties.getProperty(STATE_KEY, ""));
+    }
+
+    /**
+     * Durably replace the checkpoint with new offsets and evaluator state
+     *
+     * @param offsets offsets of the next records to consume, by partition
+     * @param state serialized evaluator state at the offsets
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void save(Map<Integer, Long> offsets, String state) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<Integer, Long> offset : offsets.entrySet()){
+            properties.setProperty(OFFSET_PREFIX + offset.getKey(), String.valueOf(offset.getValue()));
+        }
+        properties.setProperty(STATE_KEY, state);
+
+        Files.createDirectories(checkpointFile.getParent());
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile.toFile());
+             Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+            writer.flush();
+            outputStream.getFD().sync();
+        }
+        Files.move(temporaryFile, checkpointFile, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -1,5 +1,7 @@
 package distributedConsensus;
 
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.producer.Producer;
 import org.graalvm.polyglot.Value;
 
 /**
@@ -21,12 +23,29 @@ public abstract class ConsensusApplication {
      */
     public ConsensusApplication(String nodeId, String runtimeJsCode, String evaluationJsCode,
                                 String kafkaServerAddress, String kafkaTopic){
+        this(nodeId, runtimeJsCode, evaluationJsCode, kafkaServerAddress, kafkaTopic, null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nodeId unique id to identify the ConsensusApplication
+     * @param runtimeJsCode String containing Javascript records
+     * @param evaluationJsCode Javascript logic to evaluate and achieve consensus
+     * @param kafkaServerAddress URL of Kafka server, not used for a given consumer and producer
+     * @param kafkaTopic Kafka topic to subscribe to participate when achieving distributed consensus
+     * @param consumer consumer assigned to kafkaTopic, null to connect to kafkaServerAddress
+     * @param producer producer to kafkaTopic, null to connect to kafkaServerAddress
+     */
+    protected ConsensusApplication(String nodeId, String runtimeJsCode, String evaluationJsCode,
+                                   String kafkaServerAddress, String kafkaTopic, Consumer<String, String> consumer,
+                                   Producer<String, String> producer){
         this.nodeId = nodeId;
         this.runtimeJsCode = runtimeJsCode;
         this.evaluationJsCode = evaluationJsCode;
         this.kafkaTopic = kafkaTopic;
         this.kafkaServerAddress = kafkaServerAddress;
-        this.distributedConsensus = new DistributedConsensus(this);
+        this.distributedConsensus = new DistributedConsensus(this, consumer, producer);
     }
 
     /**
@@ -44,6 +63,17 @@ public abstract class ConsensusApplication {
      */
     public abstract void onConsensus(Value evaluationOutput);
 
+    /**
+     * Whether evaluationJsCode gives the same result when it is evaluated again after every record, so that a
+     * record can be evaluated on the Javascript state left by the previous record instead of replaying
+     * runtimeJsCode. Applications whose evaluationJsCode keeps state between evaluations must return false.
+     *
+     * @return whether records can be evaluated incrementally
+     */
+    public boolean isEvaluationIncremental() {
+        return false;
+    }
+
     /**
      * Get KafkaTopic
      *
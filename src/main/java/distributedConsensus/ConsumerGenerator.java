@@ -1,7 +1,14 @@
 package distributedConsensus;
 
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -11,27 +18,110 @@ public class ConsumerGenerator {
 
     /**
      * Generate and return a KafkaConsumer which can consume records from Kafka service at kafkaServerAddress
+     * Offsets are committed automatically, so that the consumer group resumes from the latest consumed records
      *
      * @param kafkaServerAddress URL of Kafka server
      * @return KafkaConsumer
      */
     public static KafkaConsumer<String, String> generateConsumer(String kafkaServerAddress, String topic,
                                                                  String consumerGroupId) {
+        return generateConsumer(kafkaServerAddress, topic, consumerGroupId, new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            }
+        }, ConsumptionProfile.DEFAULT, true);
+    }
+
+    /**
+     * Generate and return a KafkaConsumer which can consume records from Kafka service at kafkaServerAddress
+     * Offsets are not committed automatically, owner of the consumer decides where to resume from
+     *
+     * @param kafkaServerAddress URL of Kafka server
+     * @param rebalanceListener listener to seek to checkpointed offsets when partitions are assigned
+     * @return KafkaConsumer
+     */
+    public static KafkaConsumer<String, String> generateConsumer(String kafkaServerAddress, String topic,
+                                                                 String consumerGroupId,
+                                                                 ConsumerRebalanceListener rebalanceListener) {
+        return generateConsumer(kafkaServerAddress, topic, consumerGroupId, rebalanceListener,
+                ConsumptionProfile.DEFAULT);
+    }
+
+    /**
+     * Generate and return a KafkaConsumer which can consume records from Kafka service at kafkaServerAddress
+     * Offsets are not committed automatically, owner of the consumer decides where to resume from
+     *
+     * @param kafkaServerAddress URL of Kafka server
+     * @param rebalanceListener listener to seek to checkpointed offsets when partitions are assigned
+     * @param consumptionProfile fetch settings of the consumer
+     * @return KafkaConsumer
+     */
+    public static KafkaConsumer<String, String> generateConsumer(String kafkaServerAddress, String topic,
+                                                                 String consumerGroupId,
+                                                                 ConsumerRebalanceListener rebalanceListener,
+                                                                 ConsumptionProfile consumptionProfile) {
+        return generateConsumer(kafkaServerAddress, topic, consumerGroupId, rebalanceListener, consumptionProfile,
+                false); //offsets are committed together with the evaluator state of the node, see
+                            // DistributedConsensus.checkpoint
+    }
+
+    private static KafkaConsumer<String, String> generateConsumer(String kafkaServerAddress, String topic,
+                                                                  String consumerGroupId,
+                                                                  ConsumerRebalanceListener rebalanceListener,
+                                                                  ConsumptionProfile consumptionProfile,
+                                                                  boolean autoCommit) {
         Properties props = new Properties();
 
         props.put("bootstrap.servers", kafkaServerAddress);
         props.put("group.id",consumerGroupId); //specifies consumer group - all the clients
                             // which want to come to consensus should be a member of same group
-        props.put("enable.auto.commit","true"); //let consumer to commit most recently
+        props.put("enable.auto.commit", String.valueOf(autoCommit)); //let consumer to commit most recently
                             // read offset to kafka
-        props.put("auto.commit.interval.ms","1000");
+        if (autoCommit){
+            props.put("auto.commit.interval.ms","1000");
+        }
+
         String deserializer = "org.apache.kafka.common.serialization.StringDeserializer";
         props.put("key.deserializer",deserializer);
         props.put("value.deserializer",deserializer);
         props.put("auto.offset.reset", "earliest"); //set consumer to read the topic
                             // from the beginning
+        consumptionProfile.applyTo(props);
+        KafkaConsumer<String, String> consumer = new KafkaConsumer<String, String>(props);
+        consumer.subscribe(Arrays.asList(topic), rebalanceListener);
+        return consumer;
+    }
+
+    /**
+     * Generate and return a KafkaConsumer which reads all the partitions of a topic from the beginning without
+     * joining a consumer group, for read-only followers which do not need offsets or rebalances
+     *
+     * @param kafkaServerAddress URL of Kafka server
+     * @param topic Kafka topic to read
+     * @param consumptionProfile fetch settings of the consumer
+     * @return KafkaConsumer
+     */
+    public static KafkaConsumer<String, String> generateAssignedConsumer(String kafkaServerAddress, String topic,
+                                                                         ConsumptionProfile consumptionProfile) {
+        Properties props = new Properties();
+
+        props.put("bootstrap.servers", kafkaServerAddress);
+        props.put("enable.auto.commit","false");
+        String deserializer = "org.apache.kafka.common.serialization.StringDeserializer";
+        props.put("key.deserializer",deserializer);
+        props.put("value.deserializer",deserializer);
+        consumptionProfile.applyTo(props);
         KafkaConsumer<String, String> consumer = new KafkaConsumer<String, String>(props);
-        consumer.subscribe(Arrays.asList(topic));
+        List<TopicPartition> partitions = new ArrayList<>();
+        for (PartitionInfo partitionInfo : consumer.partitionsFor(topic)){
+            partitions.add(new TopicPartition(topic, partitionInfo.partition()));
+        }
+        consumer.assign(partitions);
+        consumer.seekToBeginning(partitions);
         return consumer;
     }
 }
@@ -0,0 +1,64 @@
+package distributedConsensus;
+
+import java.time.Duration;
+import java.util.Properties;
+
+/**
+ * KafkaConsumer fetch settings and poll timeout used by DistributedConsensus
+ * Selected with -DconsumptionProfile=default|low-latency
+ */
+public enum ConsumptionProfile {
+    /**
+     * Kafka default fetch settings with a 10s poll timeout
+     */
+    DEFAULT(Duration.ofMillis(10000)) {
+        @Override
+        void applyTo(Properties props) {
+        }
+    },
+    /**
+     * Fetch settings for small, latency sensitive records such as votes and heartbeats
+     * Brokers answer fetches as soon as a single byte is available instead of waiting up to 500ms
+     */
+    LOW_LATENCY(Duration.ofMillis(100)) {
+        @Override
+        void applyTo(Properties props) {
+            props.put("fetch.min.bytes", "1");
+            props.put("fetch.max.wait.ms", "5");
+            props.put("max.poll.records", "100");
+            props.put("receive.buffer.bytes", "65536");
+        }
+    };
+
+    private final Duration pollTimeout;
+
+    ConsumptionProfile(Duration pollTimeout){
+        this.pollTimeout = pollTimeout;
+    }
+
+    /**
+     * Get timeout of KafkaConsumer.poll
+     *
+     * @return poll timeout
+     */
+    public Duration getPollTimeout() {
+        return pollTimeout;
+    }
+
+    /**
+     * Set fetch settings of the profile to KafkaConsumer properties
+     *
+     * @param props KafkaConsumer properties
+     */
+    abstract void applyTo(Properties props);
+
+    /**
+     * Get the profile selected with -DconsumptionProfile
+     *
+     * @return selected profile, DEFAULT if no profile is selected
+     */
+    public static ConsumptionProfile fromSystemProperty(){
+        String profile = System.getProperty("consumptionProfile", "default");
+        return valueOf(profile.trim().toUpperCase().replace('-', '_'));
+    }
+}
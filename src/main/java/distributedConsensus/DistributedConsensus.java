@@ -1,21 +1,55 @@
 package distributedConsensus;
 
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
-import org.apache.kafka.clients.consumer.KafkaConsumer;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.graalvm.polyglot.Context;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.log4j.Logger;
 import org.graalvm.polyglot.Value;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
 /**
  * API which gives Kafka messaging and Javascript record evaluation services to be used to
  * achieve consensus
  */
 public class DistributedConsensus{
-    private KafkaConsumer<String, String> kafkaConsumer;
-    private KafkaProducer<String, String> kafkaProducer;
-    private org.graalvm.polyglot.Context jsContext;
+    private static final Logger LOGGER = Logger.getLogger(DistributedConsensus.class);
+
+    private Consumer<String, String> kafkaConsumer;
+    private Producer<String, String> kafkaProducer;
+    private final JsEvaluator jsEvaluator;
+    private final EvaluationDispatcher.Shard evaluationShard;
     private ConsensusApplication distributedNode;
+    private final CheckpointStore checkpointStore;
+    private final long checkpointInterval;
+    private CheckpointStore.Checkpoint restoredCheckpoint;
+    private final Map<Integer, Long> consumedPositions;
+    private long lastCheckpointTime;
+    private final ConsumptionProfile consumptionProfile;
+    private final boolean busyPollAllowed;
+    private volatile boolean busyPoll;
+    private final LatencyRecorder deliveryLatency, evaluationLatency;
+    private final int maxRecordLength, maxRuntimeJsCodeLength, compactionThreshold;
+    private int compactedRuntimeJsCodeLength;
+    private final AtomicLong quarantinedRecords;
+    private final boolean incrementalEvaluation;
+    private String evaluatedRuntimeJsCode;
+    private volatile boolean halted;
 
     /**
      * Constructor
@@ -23,20 +57,260 @@ public class DistributedConsensus{
      * @param distributedNode ConsensusApplication which uses DistributedConsensus API
      */
     public DistributedConsensus(ConsensusApplication distributedNode){
-        this.jsContext = Context.create("js");
+        this(distributedNode, null, null);
+    }
+
+    /**
+     * Constructor
+     * A given consumer should already be subscribed or assigned to the topic of the ConsensusApplication
+     *
+     * @param distributedNode ConsensusApplication which uses DistributedConsensus API
+     * @param consumer consumer of the topic, null to connect to the Kafka server of the ConsensusApplication
+     * @param producer producer to the topic, null to connect to the Kafka server of the ConsensusApplication
+     */
+    public DistributedConsensus(ConsensusApplication distributedNode, Consumer<String, String> consumer,
+                                Producer<String, String> producer){
         this.distributedNode  = distributedNode;
-        this.kafkaConsumer = ConsumerGenerator.generateConsumer(distributedNode.getKafkaServerAddress(),
-                distributedNode.getKafkaTopic(), distributedNode.getNodeId());
-        this.kafkaProducer = ProducerGenerator.generateProducer(distributedNode.getKafkaServerAddress());
+        EvaluationDispatcher evaluationDispatcher = EvaluationDispatcher.getShared();
+        this.evaluationShard = evaluationDispatcher == null ? null :
+                evaluationDispatcher.createShard(distributedNode.getNodeId());
+        this.jsEvaluator = evaluationShard == null ? new JsEvaluator(distributedNode.getNodeId()) :
+                evaluationShard.getJsEvaluator();
+        this.maxRecordLength = Integer.getInteger("maxJsRecordLength", 64 * 1024);
+        this.maxRuntimeJsCodeLength = Integer.getInteger("maxRuntimeJsCodeLength", 16 * 1024 * 1024);
+        this.compactionThreshold = Integer.getInteger("compactionThreshold", 1024 * 1024);
+        this.quarantinedRecords = new AtomicLong();
+        this.incrementalEvaluation = distributedNode.isEvaluationIncremental() &&
+                Boolean.parseBoolean(System.getProperty("incrementalEvaluation", "true"));
+        String checkpointDirectory = System.getProperty("checkpointDir");
+        this.checkpointStore = checkpointDirectory == null ? null :
+                new CheckpointStore(checkpointDirectory, distributedNode.getNodeId());
+        this.checkpointInterval = Long.getLong("checkpointIntervalMs", 1000);
+        this.restoredCheckpoint = this.loadCheckpoint();
+        this.consumedPositions = new HashMap<>();
+        this.consumptionProfile = ConsumptionProfile.fromSystemProperty();
+        this.busyPollAllowed = Boolean.getBoolean("busyPoll");
+        this.deliveryLatency = new LatencyRecorder(distributedNode.getNodeId() + " record delivery latency");
+        this.evaluationLatency = new LatencyRecorder(distributedNode.getNodeId() +
+                " record to evaluation latency");
+        this.kafkaConsumer = consumer != null ? consumer : ConsumerGenerator.generateConsumer(
+                distributedNode.getKafkaServerAddress(),
+                distributedNode.getKafkaTopic(), distributedNode.getNodeId(), new ConsumerRebalanceListener() {
+                    @Override
+                    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                        rememberPositions(partitions);
+                    }
+
+                    @Override
+                    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                        seekToCheckpoint(partitions);
+                    }
+                }, consumptionProfile);
+        this.kafkaProducer = producer != null ? producer :
+                ProducerGenerator.generateProducer(distributedNode.getKafkaServerAddress());
+    }
+
+    private CheckpointStore.Checkpoint loadCheckpoint(){
+        if (checkpointStore == null){
+            return null;
+        }
+        try {
+            CheckpointStore.Checkpoint checkpoint = checkpointStore.load();
+            if (checkpoint != null){
+                LOGGER.info(distributedNode.getNodeId() + " :: restored checkpoint at offsets " +
+                        checkpoint.getOffsets());
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            LOGGER.error("Failed to read checkpoint, will replay the topic from the beginning :", e);
+            return null;
+        }
+    }
+
+    /**
+     * Keep positions of revoked partitions, in-memory evaluator state of the node matches these positions
+     *
+     * @param partitions partitions revoked from the KafkaConsumer
+     */
+    private void rememberPositions(Collection<TopicPartition> partitions){
+        for (TopicPartition partition : partitions){
+            consumedPositions.put(partition.partition(), kafkaConsumer.position(partition));
+        }
+    }
+
+    /**
+     * Resume from the consumed positions after a rebalance, or from the restored checkpoint when the node
+     * starts, instead of replaying the topic from the beginning
+     * Partitions without a position or a checkpointed offset are replayed from the beginning, since the evaluator
+     * state of the node is empty; offsets committed to the consumer group are never resumed from
+     *
+     * @param partitions partitions assigned to the KafkaConsumer
+     */
+    private void seekToCheckpoint(Collection<TopicPartition> partitions){
+        List<TopicPartition> unpositioned = new ArrayList<>();
+        for (TopicPartition partition : partitions){
+            Long offset = consumedPositions.get(partition.partition());
+            if (offset == null && restoredCheckpoint != null){
+                offset = restoredCheckpoint.getOffsets().get(partition.partition());
+            }
+            if (offset != null){
+                kafkaConsumer.seek(partition, offset);
+            }
+            else{
+                unpositioned.add(partition);
+            }
+        }
+        if (!unpositioned.isEmpty()){
+            kafkaConsumer.seekToBeginning(unpositioned);
+        }
+    }
+
+    /**
+     * Get evaluator state restored from the local checkpoint of the node
+     * Records before the checkpointed offsets are not consumed again when a checkpoint is restored
+     *
+     * @return serialized evaluator state, null if there is no checkpoint
+     */
+    public String getRestoredState(){
+        return restoredCheckpoint == null ? null : restoredCheckpoint.getState();
+    }
+
+    /**
+     * Commit offsets of the consumed records together with the evaluator state at those offsets
+     * Should be called on the consuming thread after processing all the records returned by getMessages
+     * Does nothing unless checkpoints are enabled with -DcheckpointDir, and at most once per
+     * -DcheckpointIntervalMs unless forced
+     *
+     * @param state serialized evaluator state after processing the consumed records
+     * @param force whether to checkpoint even if the interval has not passed
+     */
+    public void checkpoint(String state, boolean force){
+        long now = System.currentTimeMillis();
+        if (checkpointStore == null || (!force && now - lastCheckpointTime < checkpointInterval)){
+            return;
+        }
+        Map<Integer, Long> offsets = new HashMap<>();
+        Map<TopicPartition, OffsetAndMetadata> kafkaOffsets = new HashMap<>();
+        for (TopicPartition partition : kafkaConsumer.assignment()){
+            long position = kafkaConsumer.position(partition);
+            offsets.put(partition.partition(), position);
+            kafkaOffsets.put(partition, new OffsetAndMetadata(position));
+        }
+        if (offsets.isEmpty()){
+            return;
+        }
+        try {
+            checkpointStore.save(offsets, state);
+            this.lastCheckpointTime = now;
+        } catch (IOException e) {
+            LOGGER.error("Failed to write checkpoint :", e);
+            return;
+        }
+        try {
+            //THE LOCAL CHECKPOINT IS THE SOURCE OF TRUTH, KAFKA OFFSETS ARE COMMITTED FOR MONITORING
+            kafkaConsumer.commitSync(kafkaOffsets);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to commit offsets to Kafka :", e);
+        }
     }
 
     /**
      * Poll Kafka and return a collection of ConsumerRecords
+     * Waits at most the poll timeout of the consumption profile selected with -DconsumptionProfile
      *
      * @return collection of ConsumerRecords
      */
     public ConsumerRecords<String, String> getMessages(){
-        return  this.kafkaConsumer.poll(10000);
+        ConsumerRecords<String, String> records;
+        try {
+            if (busyPoll){
+                //SPIN ON NON-BLOCKING POLLS INSTEAD OF SLEEPING IN THE CONSUMER UNTIL A FETCH RESPONSE ARRIVES
+                long deadline = System.nanoTime() + consumptionProfile.getPollTimeout().toNanos();
+                do {
+                    records = this.kafkaConsumer.poll(Duration.ZERO);
+                } while (records.isEmpty() && busyPoll && System.nanoTime() - deadline < 0);
+            }
+            else{
+                records = this.kafkaConsumer.poll(consumptionProfile.getPollTimeout());
+            }
+        } catch (WakeupException e) {
+            return ConsumerRecords.empty();
+        }
+        long now = System.currentTimeMillis();
+        for (ConsumerRecord<String, String> record : records){
+            deliveryLatency.record(now - record.timestamp());
+        }
+        return records;
+    }
+
+    /**
+     * Make a getMessages call which is waiting for records return immediately without records
+     * Can be called from any thread
+     */
+    public void wakeup(){
+        this.kafkaConsumer.wakeup();
+    }
+
+    /**
+     * Get offsets of the end of the log, i.e. offsets of the next records to be written
+     * Should be called on the consuming thread
+     *
+     * @return end offsets by partition, empty if no partition is assigned yet
+     */
+    public Map<Integer, Long> getEndOffsets(){
+        Map<Integer, Long> endOffsets = new HashMap<>();
+        Collection<TopicPartition> partitions = kafkaConsumer.assignment();
+        if (!partitions.isEmpty()){
+            for (Map.Entry<TopicPartition, Long> endOffset : kafkaConsumer.endOffsets(partitions).entrySet()){
+                endOffsets.put(endOffset.getKey().partition(), endOffset.getValue());
+            }
+        }
+        return endOffsets;
+    }
+
+    /**
+     * Get whether all the records before the given offsets are returned by getMessages
+     * Should be called on the consuming thread
+     *
+     * @param offsets offsets by partition, e.g. returned by getEndOffsets
+     * @return whether the consumer position of every partition reached the offset
+     */
+    public boolean isConsumedUpTo(Map<Integer, Long> offsets){
+        for (TopicPartition partition : kafkaConsumer.assignment()){
+            Long offset = offsets.get(partition.partition());
+            if (offset != null && kafkaConsumer.position(partition) < offset){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Busy poll Kafka while latency of records matters most, e.g. while following heartbeats of a leader
+     * Does nothing unless busy polling is allowed with -DbusyPoll=true, since it keeps a core busy
+     *
+     * @param busyPoll whether to busy poll
+     */
+    public void setBusyPoll(boolean busyPoll){
+        this.busyPoll = busyPollAllowed && busyPoll;
+    }
+
+    /**
+     * Get latency from writing records to Kafka until they are returned by getMessages
+     *
+     * @return record delivery latency in milliseconds
+     */
+    public LatencyRecorder getDeliveryLatency() {
+        return deliveryLatency;
+    }
+
+    /**
+     * Get latency from writing records to Kafka until they are evaluated with evaluateJsCode
+     *
+     * @return record to evaluation latency in milliseconds
+     */
+    public LatencyRecorder getEvaluationLatency() {
+        return evaluationLatency;
     }
 
     /**
@@ -44,6 +318,24 @@ public class DistributedConsensus{
      */
     public void closeConsumer(){
         this.kafkaConsumer.close();
+        if (evaluationShard == null){
+            this.jsEvaluator.close();
+        }
+        else{
+            evaluationShard.submit(evaluator -> {
+                evaluator.close();
+                return null;
+            });
+        }
+        LOGGER.info(distributedNode.getNodeId() + " :: quarantined records=" + quarantinedRecords.get() +
+                ", timed out evaluations=" + jsEvaluator.getTimedOutEvaluationCount() + ", failed evaluations=" +
+                jsEvaluator.getFailedEvaluationCount() + " :: " + jsEvaluator.getEvaluationTime().summary());
+        if (deliveryLatency.getCount() > 0){
+            LOGGER.info(consumptionProfile + " consumption profile" + (busyPollAllowed ? " with busy poll" : "") +
+                    " :: " + deliveryLatency.summary());
+            LOGGER.info(consumptionProfile + " consumption profile" + (busyPollAllowed ? " with busy poll" : "") +
+                    " :: " + evaluationLatency.summary());
+        }
     }
 
     /**
@@ -55,16 +347,229 @@ public class DistributedConsensus{
                 command));
     }
 
+    /**
+     * Write a Javascript command as a String to Kafka with a key, so that the topic can be compacted
+     * Kafka log compaction keeps only the latest record of a key, so a key should only be reused by
+     * records which supersede the previous records of the key
+     * The topic should have a single partition, since records are ordered by partition
+     *
+     * @param key key of the record
+     * @param command command to write
+     */
+    public void writeACommand(String key, String command) {
+        kafkaProducer.send(new ProducerRecord<String, String>(distributedNode.getKafkaTopic(), key, command));
+    }
+
+    /**
+     * Write a tombstone (a record with a null value) for a key, so that log compaction removes the records of
+     * the key
+     * Tombstones are read by getMessages like other records and should be skipped when evaluating records
+     *
+     * @param key key of the records to remove
+     */
+    public void writeATombstone(String key) {
+        kafkaProducer.send(new ProducerRecord<String, String>(distributedNode.getKafkaTopic(), key, null));
+    }
+
     /**
      * Concatenate runtimeJsCode and command and set the result to runtimeJsCode
      * Evaluate and return Value of (runtimeJsCode + evaluationJsCode)
+     * A command which is too long (-DmaxJsRecordLength), grows runtimeJsCode beyond -DmaxRuntimeJsCodeLength or
+     * fails is quarantined: it is not added to runtimeJsCode and null is returned, so that a single bad record
+     * cannot stall the node. These checks give the same outcome on every node. An evaluation exceeding the time
+     * budget does not, so it throws JsEvaluator.TimeBudgetExceededException and the node should stop consuming
+     * Runs on the evaluation shard of the node when -DevaluationThreads is set, so must not be called from
+     * a callback of evaluateJsCodeAsync
      *
      * @param command new Javascript record read from Kafka
-     * @return result of evaluation
+     * @return result of evaluation, null if the command is quarantined
+     * @throws JsEvaluator.TimeBudgetExceededException if the evaluation exceeds the time budget
      */
     public Value evaluateJsCode(String command){
-        distributedNode.setRuntimeJsCode(distributedNode.getRuntimeJsCode() + command);
-        return jsContext.eval("js",distributedNode.getRuntimeJsCode()+
-                distributedNode.getEvaluationJsCode());
+        if (evaluationShard == null){
+            return this.evaluate(command);
+        }
+        return evaluationShard.submit(evaluator -> this.evaluate(command)).join();
+    }
+
+    private Value evaluate(String command){
+        if (halted){
+            //RECORDS QUEUED ON THE EVALUATION SHARD AFTER THE ONE WHICH HALTED THE NODE ARE NOT APPLIED
+            throw new IllegalStateException(distributedNode.getNodeId() + " is halted");
+        }
+        String runtimeJsCode = distributedNode.getRuntimeJsCode();
+        if (command.length() > maxRecordLength ||
+                runtimeJsCode.length() + command.length() > maxRuntimeJsCodeLength){
+            this.quarantine(command, "record is too long (" + command.length() + " characters)");
+            return null;
+        }
+        //ONLY THE NEW RECORD IS EVALUATED IF THE CONTEXT ALREADY HOLDS THE STATE OF runtimeJsCode
+        boolean incremental = this.isEvaluated(runtimeJsCode);
+        this.evaluatedRuntimeJsCode = null;
+        try {
+            Value result = jsEvaluator.eval((incremental ? "" : runtimeJsCode) + command +
+                    distributedNode.getEvaluationJsCode());
+            String updatedRuntimeJsCode = new StringBuilder(runtimeJsCode.length() + command.length())
+                    .append(runtimeJsCode).append(command).toString();
+            distributedNode.setRuntimeJsCode(updatedRuntimeJsCode);
+            this.evaluatedRuntimeJsCode = updatedRuntimeJsCode;
+            return result;
+        } catch (JsEvaluator.TimeBudgetExceededException exception) {
+            //SKIPPING THE RECORD WOULD DIVERGE FROM NODES WHICH APPLIED IT, THE NODE STOPS INSTEAD
+            this.halted = true;
+            LOGGER.error(distributedNode.getNodeId() + " :: halting, " + exception.getMessage() + " : " +
+                    (command.length() > 200 ? command.substring(0, 200) + "..." : command));
+            throw exception;
+        } catch (RuntimeException exception) {
+            //THE CONTEXT IS RECREATED OR HOLDS A PARTIALLY APPLIED RECORD, THE NEXT RECORD REPLAYS runtimeJsCode
+            this.quarantine(command, exception.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Evaluate a read-only Javascript query against runtimeJsCode without adding it to runtimeJsCode
+     *
+     * @param query Javascript expression to evaluate after runtimeJsCode
+     * @return result of the query, null if the evaluation fails
+     */
+    public Value queryJsCode(String query){
+        if (evaluationShard == null){
+            return this.query(query);
+        }
+        return evaluationShard.submit(evaluator -> this.query(query)).join();
+    }
+
+    private Value query(String query){
+        String runtimeJsCode = distributedNode.getRuntimeJsCode();
+        boolean incremental = this.isEvaluated(runtimeJsCode);
+        this.evaluatedRuntimeJsCode = null;
+        try {
+            Value result = jsEvaluator.eval((incremental ? "" : runtimeJsCode) + query);
+            this.evaluatedRuntimeJsCode = incrementalEvaluation ? runtimeJsCode : null;
+            return result;
+        } catch (RuntimeException exception) {
+            LOGGER.warn(distributedNode.getNodeId() + " :: failed to evaluate query " + query + " : " +
+                    exception.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check whether the Javascript context holds the state of runtimeJsCode, because runtimeJsCode is the one
+     * built by the latest successful evaluation. Applications replacing runtimeJsCode (new round, restore) always
+     * set a different String instance, so the identity check is enough.
+     *
+     * @param runtimeJsCode current runtimeJsCode of the application
+     * @return whether only new Javascript needs to be evaluated
+     */
+    private boolean isEvaluated(String runtimeJsCode){
+        return incrementalEvaluation && runtimeJsCode == evaluatedRuntimeJsCode;
+    }
+
+    /**
+     * Replace runtimeJsCode with initialJsCode followed by a snapshot of the Javascript state, once records longer
+     * than -DcompactionThreshold characters (default 1048576) were added since the previous snapshot, so that
+     * runtimeJsCode and checkpoints stay proportional to the state instead of the history of records
+     * Should be called on the consuming thread between batches
+     *
+     * @param initialJsCode Javascript code runtimeJsCode started with
+     * @param snapshotQuery Javascript expression returning Javascript code which rebuilds the state after
+     *                      initialJsCode
+     * @return whether runtimeJsCode is replaced
+     */
+    public boolean compactRuntimeJsCode(String initialJsCode, String snapshotQuery){
+        if (distributedNode.getRuntimeJsCode().length() - compactedRuntimeJsCodeLength < compactionThreshold){
+            return false;
+        }
+        if (evaluationShard == null){
+            return this.compact(initialJsCode, snapshotQuery);
+        }
+        return evaluationShard.submit(evaluator -> this.compact(initialJsCode, snapshotQuery)).join();
+    }
+
+    private boolean compact(String initialJsCode, String snapshotQuery){
+        int length = distributedNode.getRuntimeJsCode().length();
+        Value snapshot = this.query(snapshotQuery);
+        if (snapshot == null || !snapshot.isString()){
+            LOGGER.warn(distributedNode.getNodeId() + " :: failed to snapshot runtimeJsCode");
+            this.compactedRuntimeJsCodeLength = length;
+            return false;
+        }
+        String compactedRuntimeJsCode = initialJsCode + snapshot.asString();
+        distributedNode.setRuntimeJsCode(compactedRuntimeJsCode);
+        this.compactedRuntimeJsCodeLength = compactedRuntimeJsCode.length();
+        LOGGER.info(distributedNode.getNodeId() + " :: compacted runtimeJsCode from " + length + " to " +
+                compactedRuntimeJsCodeLength + " characters");
+        return true;
+    }
+
+    /**
+     * Get maximum length of a record accepted by evaluateJsCode (-DmaxJsRecordLength)
+     *
+     * @return maximum length of a record in characters
+     */
+    public int getMaxRecordLength() {
+        return maxRecordLength;
+    }
+
+    private void quarantine(String command, String reason){
+        quarantinedRecords.incrementAndGet();
+        LOGGER.warn(distributedNode.getNodeId() + " :: quarantined record, " + reason + " : " +
+                (command.length() > 200 ? command.substring(0, 200) + "..." : command));
+    }
+
+    /**
+     * Get number of records skipped by evaluateJsCode
+     *
+     * @return number of quarantined records
+     */
+    public long getQuarantinedRecordCount() {
+        return quarantinedRecords.get();
+    }
+
+    /**
+     * Evaluate a Javascript record read from Kafka as evaluateJsCode(command) does, and record the
+     * latency from writing the record until its evaluation is finished
+     *
+     * @param command new Javascript record read from Kafka
+     * @param recordTimestamp Kafka timestamp of the record
+     * @return result of evaluation, null if the command is quarantined
+     */
+    public Value evaluateJsCode(String command, long recordTimestamp){
+        Value result = this.evaluateJsCode(command);
+        evaluationLatency.record(System.currentTimeMillis() - recordTimestamp);
+        return result;
+    }
+
+    /**
+     * Evaluate a Javascript record read from Kafka after the records submitted before it, and handle the
+     * result on the evaluation shard of the node
+     * Lets the consumer thread keep polling while records are evaluated on the shared pool enabled with
+     * -DevaluationThreads, evaluates and handles the record on the calling thread otherwise
+     *
+     * @param command new Javascript record read from Kafka
+     * @param recordTimestamp Kafka timestamp of the record
+     * @param onResult handler of the result of evaluation (null if the command is quarantined), should not block
+     * @param <T> type returned by the handler
+     * @return future completed with the value returned by the handler, or completed exceptionally with
+     * JsEvaluator.TimeBudgetExceededException if the evaluation exceeds the time budget
+     */
+    public <T> CompletableFuture<T> evaluateJsCodeAsync(String command, long recordTimestamp,
+                                                        Function<Value, T> onResult){
+        if (evaluationShard == null){
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                future.complete(onResult.apply(this.evaluateJsCode(command, recordTimestamp)));
+            } catch (RuntimeException exception) {
+                future.completeExceptionally(exception);
+            }
+            return future;
+        }
+        return evaluationShard.submit(evaluator -> {
+            Value result = this.evaluate(command);
+            evaluationLatency.record(System.currentTimeMillis() - recordTimestamp);
+            return onResult.apply(result);
+        });
     }
 }
@@ -0,0 +1,136 @@
+package distributedConsensus;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs Javascript evaluation of many consensus groups on a fixed work-stealing pool
+ * Each group (node) gets a Shard which owns its JsEvaluator and evaluates the group's work serially in
+ * submission order, while different shards run in parallel on at most parallelism threads.
+ * The shared dispatcher is enabled with -DevaluationThreads=n
+ */
+public class EvaluationDispatcher {
+    private static final int BATCH_SIZE = 64;
+    private static EvaluationDispatcher sharedDispatcher;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Serial executor of a consensus group on the pool of the dispatcher
+     */
+    public final class Shard {
+        private final JsEvaluator jsEvaluator;
+        private final Queue<Runnable> tasks;
+        private final AtomicInteger pendingTasks;
+        private final Runnable drain;
+
+        private Shard(String groupId){
+            this.jsEvaluator = new JsEvaluator(groupId);
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.pendingTasks = new AtomicInteger();
+            this.drain = this::drain;
+        }
+
+        /**
+         * Submit work to be run after all the work previously submitted to this shard
+         *
+         * @param work work using the JsEvaluator of the shard
+         * @param <T> type of the result
+         * @return future completed with the result of the work
+         */
+        public <T> CompletableFuture<T> submit(Function<JsEvaluator, T> work){
+            CompletableFuture<T> future = new CompletableFuture<>();
+            tasks.add(() -> {
+                try {
+                    future.complete(work.apply(jsEvaluator));
+                } catch (Throwable throwable) {
+                    future.completeExceptionally(throwable);
+                }
+            });
+            if (pendingTasks.getAndIncrement() == 0){
+                pool.execute(drain);
+            }
+            return future;
+        }
+
+        /**
+         * Run a batch of tasks, then yield the pool thread to other shards if more tasks are pending
+         */
+        private void drain(){
+            for (int i = 0; i < BATCH_SIZE; i++){
+                tasks.poll().run();
+                if (pendingTasks.decrementAndGet() == 0){
+                    return;
+                }
+            }
+            pool.execute(drain);
+        }
+
+        /**
+         * Get the JsEvaluator owned by the shard
+         * Should only be used by work submitted to the shard
+         *
+         * @return JsEvaluator of the shard
+         */
+        public JsEvaluator getJsEvaluator() {
+            return jsEvaluator;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param parallelism number of threads evaluating Javascript
+     */
+    public EvaluationDispatcher(int parallelism){
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Create a shard for a consensus group
+     *
+     * @param groupId id of the group, used in logs
+     * @return shard of the group
+     */
+    public Shard createShard(String groupId){
+        return new Shard(groupId);
+    }
+
+    /**
+     * Get number of threads evaluating Javascript
+     *
+     * @return parallelism of the pool
+     */
+    public int getParallelism(){
+        return pool.getParallelism();
+    }
+
+    /**
+     * Stop the pool after the submitted work is done
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeout) throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the dispatcher shared by the nodes of this process
+     *
+     * @return shared dispatcher, null unless enabled with -DevaluationThreads
+     */
+    public static synchronized EvaluationDispatcher getShared(){
+        Integer evaluationThreads = Integer.getInteger("evaluationThreads");
+        if (sharedDispatcher == null && evaluationThreads != null && evaluationThreads > 0){
+            sharedDispatcher = new EvaluationDispatcher(evaluationThreads);
+        }
+        return sharedDispatcher;
+    }
+}
@@ -0,0 +1,171 @@
+package distributedConsensus;
+
+import org.apache.log4j.Logger;
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Value;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sandboxed Javascript evaluator with a time budget per evaluation
+ * Javascript read from Kafka cannot access host classes, IO, native code or threads. An evaluation which
+ * exceeds the time budget (-DjsTimeBudgetMs, default 1000) is cancelled by closing the context, and a fresh
+ * context is created for the next evaluation. Since the time taken depends on the host, a cancelled evaluation
+ * throws TimeBudgetExceededException, which nodes must treat as fatal instead of skipping the record.
+ */
+public class JsEvaluator {
+
+    /**
+     * Thrown when an evaluation is cancelled for exceeding the time budget
+     * Other nodes may evaluate the same Javascript within the budget, so a node which skips the record would
+     * diverge from them
+     */
+    public static class TimeBudgetExceededException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor
+         *
+         * @param timeBudget time budget in milliseconds
+         */
+        public TimeBudgetExceededException(long timeBudget){
+            super("Javascript evaluation exceeded the time budget of " + timeBudget + "ms");
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(JsEvaluator.class);
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "JsEvaluatorWatchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final long timeBudget;
+    private final LatencyRecorder evaluationTime;
+    private final AtomicLong timedOutEvaluations, failedEvaluations;
+    private volatile Context jsContext;
+
+    /**
+     * Constructor
+     *
+     * @param name name of the evaluator, used in logs
+     */
+    public JsEvaluator(String name){
+        this.name = name;
+        this.timeBudget = Long.getLong("jsTimeBudgetMs", 1000);
+        this.evaluationTime = new LatencyRecorder(name + " js evaluation time");
+        this.timedOutEvaluations = new AtomicLong();
+        this.failedEvaluations = new AtomicLong();
+        this.jsContext = createContext();
+    }
+
+    private static Context createContext(){
+        return Context.newBuilder("js")
+                .allowHostAccess(false)
+                .allowHostClassLoading(false)
+                .allowNativeAccess(false)
+                .allowCreateThread(false)
+                .allowIO(false)
+                .build();
+    }
+
+    /**
+     * Evaluate Javascript within the time budget
+     * The returned Value is valid until the next evaluation fails
+     *
+     * @param jsCode Javascript to evaluate
+     * @return result of evaluation
+     * @throws TimeBudgetExceededException if evaluation exceeds the time budget
+     * @throws RuntimeException if evaluation fails
+     */
+    public Value eval(String jsCode){
+        final Context context = this.jsContext;
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+            timedOut.set(true);
+            context.close(true);
+        }, timeBudget, TimeUnit.MILLISECONDS);
+        long startTime = System.nanoTime();
+        Value result;
+        try {
+            result = context.eval("js", jsCode);
+        } catch (RuntimeException exception) {
+            watchdog.cancel(false);
+            this.onFailure(context, timedOut.get());
+            if (timedOut.get()){
+                throw new TimeBudgetExceededException(timeBudget);
+            }
+            throw exception;
+        } finally {
+            evaluationTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }
+        if (!watchdog.cancel(false)){
+            //THE WATCHDOG FIRED RIGHT AFTER THE EVALUATION FINISHED, THE RESULT BELONGS TO A CLOSED CONTEXT
+            try {
+                watchdog.get();
+            } catch (Exception ignored) {
+            }
+            this.onFailure(context, true);
+            throw new TimeBudgetExceededException(timeBudget);
+        }
+        return result;
+    }
+
+    /**
+     * Count the failed evaluation and replace the context, since its global state may be partially updated
+     *
+     * @param failedContext context of the failed evaluation
+     * @param timedOut whether the evaluation is cancelled by the watchdog, which closes the context
+     */
+    private void onFailure(Context failedContext, boolean timedOut){
+        if (timedOut){
+            timedOutEvaluations.incrementAndGet();
+            LOGGER.warn(name + " :: Javascript evaluation exceeded the time budget of " + timeBudget + "ms");
+        }
+        else{
+            failedEvaluations.incrementAndGet();
+            failedContext.close();
+        }
+        this.jsContext = createContext();
+    }
+
+    /**
+     * Get time taken by evaluations
+     *
+     * @return evaluation time in milliseconds
+     */
+    public LatencyRecorder getEvaluationTime() {
+        return evaluationTime;
+    }
+
+    /**
+     * Get number of evaluations cancelled for exceeding the time budget
+     *
+     * @return number of timed out evaluations
+     */
+    public long getTimedOutEvaluationCount() {
+        return timedOutEvaluations.get();
+    }
+
+    /**
+     * Get number of evaluations which failed with a Javascript error
+     *
+     * @return number of failed evaluations
+     */
+    public long getFailedEvaluationCount() {
+        return failedEvaluations.get();
+    }
+
+    /**
+     * Close the context
+     */
+    public void close(){
+        jsContext.close(true);
+    }
+}
@@ -0,0 +1,112 @@
+package distributedConsensus;
+
+/**
+ * Thread safe recorder of latency samples (in milliseconds)
+ * Samples are kept in fixed log-linear buckets (~3% precision) so that memory use does not grow with the
+ * number of samples
+ */
+public class LatencyRecorder {
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 6) * SUB_BUCKETS;
+
+    private final String name;
+    private final long[] buckets;
+    private long count, sum, min, max;
+
+    /**
+     * Constructor
+     *
+     * @param name name of the measured latency, used in the summary
+     */
+    public LatencyRecorder(String name){
+        this.name = name;
+        this.buckets = new long[BUCKET_COUNT];
+        this.min = Long.MAX_VALUE;
+        this.max = 0;
+    }
+
+    /**
+     * Record a latency sample
+     *
+     * @param millis latency in milliseconds, negative values are recorded as 0
+     */
+    public synchronized void record(long millis){
+        long sample = Math.max(0, millis);
+        buckets[bucketOf(sample)]++;
+        count++;
+        sum += sample;
+        min = Math.min(min, sample);
+        max = Math.max(max, sample);
+    }
+
+    /**
+     * Get number of recorded samples
+     *
+     * @return number of recorded samples
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Get maximum recorded sample
+     *
+     * @return maximum recorded sample, 0 if nothing is recorded
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Get an approximate percentile of the recorded samples
+     *
+     * @param percentile percentile in the range [0, 100]
+     * @return approximate value of the percentile, 0 if nothing is recorded
+     */
+    public synchronized long getPercentile(double percentile){
+        if (count == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++){
+            seen += buckets[i];
+            if (seen >= Math.max(1, rank)){
+                return Math.min(max, Math.max(min, lowerBoundOf(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Summarise the recorded samples
+     *
+     * @return one line summary of count, mean and percentiles
+     */
+    public synchronized String summary(){
+        if (count == 0){
+            return name + " : no samples";
+        }
+        return name + " : count=" + count + ", min=" + min + "ms, mean=" + (sum / count) + "ms, p50=" +
+                getPercentile(50) + "ms, p99=" + getPercentile(99) + "ms, max=" + max + "ms";
+    }
+
+    private static int bucketOf(long value){
+        if (value < LINEAR_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >> (exponent - 5)) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBoundOf(int bucket){
+        if (bucket < LINEAR_BUCKETS){
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return subBucket << (exponent - 5);
+    }
+}
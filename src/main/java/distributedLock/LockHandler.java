@@ -1,34 +1,161 @@
 package distributedLock;
 
+import distributedConsensus.AsyncNotifier;
 import distributedConsensus.ConsensusApplication;
+import distributedConsensus.LatencyRecorder;
 import leaderElection.LeaderCandidate;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.log4j.Logger;
 import org.graalvm.polyglot.Value;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Java NODE trying to acquire distributed lock
  * Can acquire the lock, release the lock
+ * Nodes acquiring with a lease keep renewing it while they are in the lock queue. When the lease of the holder
+ * at the head of the queue expires, measured in Kafka record timestamps, waiters write an expire record which
+ * removes the holder, so that the next waiter gets the lock after at most lease + lease/3 when the holder
+ * crashes.
+ * Records are keyed by node id and acquisition token, and tombstoned once the lock is released or expired,
+ * so that lock topics can be compacted.
+ * Records are evaluated incrementally, and replaced by a snapshot of the queue and the leases once they grow
+ * beyond -DcompactionThreshold, so that renewals do not make evaluation and checkpoints grow with time.
+ * Acquiring and losing the lock are delivered to LockListeners through an AsyncNotifier, so that the consumer
+ * thread keeps evaluating records while the lock is held.
  */
 public class LockHandler extends ConsensusApplication {
     private static final Logger LOGGER = Logger.getLogger(LeaderCandidate.class);
-    private boolean terminate;
+    private static final String LEASE_JS_CODE = "var logTime = 0; var leases = Object.create(null);" +
+            "var leaseHead = null; var leaseExpiry = 0; var leaseRenewal = 0; var lastExpiredLease = null;" +
+            "function addWithLease(client, lease, token){if (!lockStatuses.has(client)){" +
+            "if (client === leaseHead){leaseHead = null;}" +
+            "leases[client] = {duration: lease, token: token}; lockStatuses.add(client);}}" +
+            "function removeLease(client, token){var lease = leases[client];" +
+            "if (lease === undefined || lease.token !== token){return false;}" +
+            "lockStatuses.delete(client); delete leases[client]; return true;}" +
+            "function release(client, token){removeLease(client, token);}" +
+            "function expire(client, token){var lastRenewal = client === leaseHead ? leaseRenewal : logTime;" +
+            "if (removeLease(client, token)){" +
+            "lastExpiredLease = {client: client, lastRenewal: lastRenewal, expiredAt: logTime, successor: null};}}" +
+            "function checkLease(){if (lockStatuses.size === 0){leaseHead = null; return;}" +
+            "var head = lockStatuses.values().next().value;" +
+            "if (head !== leaseHead){leaseHead = head; leaseRenewal = logTime; var lease = leases[head];" +
+            "leaseExpiry = lease === undefined ? Infinity : logTime + lease.duration;" +
+            "if (lastExpiredLease !== null && lastExpiredLease.expiredAt === logTime && " +
+            "lastExpiredLease.successor === null){lastExpiredLease.successor = head;}}}" +
+            "function tick(time){logTime = Math.max(logTime, time); checkLease();}" +
+            "function renew(client, token){var lease = leases[client];" +
+            "if (client === leaseHead && lease !== undefined && lease.token === token){" +
+            "leaseRenewal = logTime; leaseExpiry = logTime + lease.duration;}}" +
+            "function expiredLease(){return leaseHead !== null && leaseExpiry <= logTime ? " +
+            "leaseHead + \",\" + leases[leaseHead].token : null;}" +
+            //SNAPSHOT OF THE QUEUE AND THE LEASES, JSON KEEPS NULL INSTEAD OF AN INFINITE EXPIRY
+            "function snapshot(){var state = {queue: Array.from(lockStatuses), leases: leases, logTime: logTime," +
+            "leaseHead: leaseHead, leaseExpiry: leaseExpiry, leaseRenewal: leaseRenewal," +
+            "lastExpiredLease: lastExpiredLease};" +
+            "return \"restoreLeases(JSON.parse(\" + JSON.stringify(JSON.stringify(state)).replace(/\\u2028/g, " +
+            "\"\\\\u2028\").replace(/\\u2029/g, \"\\\\u2029\") + \"));\";}" +
+            "function restoreLeases(state){lockStatuses = new Set(state.queue);" +
+            "leases = Object.assign(Object.create(null), state.leases); logTime = state.logTime;" +
+            "leaseHead = state.leaseHead; leaseExpiry = state.leaseExpiry === null ? Infinity : state.leaseExpiry;" +
+            "leaseRenewal = state.leaseRenewal; lastExpiredLease = state.lastExpiredLease;}";
+    private volatile boolean terminate;
+    private final String initialJsCode;
+    private final long leaseMillis;
+    private final ScheduledExecutorService leaseRenewer;
+    private final LatencyRecorder recoveryTime;
+    private final AsyncNotifier notifier;
+    private final List<LockListener> listeners;
+    private final Object renewalLock;
+    private ScheduledFuture<?> leaseRenewal; //GUARDED BY renewalLock
+    private String renewedToken; //GUARDED BY renewalLock, TOKEN OF THE LEASE WHICH IS STILL RENEWED
+    private volatile String leaseToken;
+    private String lastExpiredToken;
+    private volatile boolean waiting, holding;
 
     /**
      *Constructor
      *
      * @param nodeId unique id to identify the LockHandler
-     * @param runtimeJsCode String containing Javascript records
-     * @param evaluationJsCode Javascript logic to evaluate and decide whether lock can be acquired or not
+     * @param runtimeJsCode String containing Javascript records, declaring the lockStatuses Set
+     * @param evaluationJsCode Javascript logic to evaluate and decide whether lock can be acquired or not, which
+     *                         should only read the state, since records are evaluated incrementally
      * @param kafkaServerAddress URL of Kafka server
      * @param kafkaTopic Kafka topic to subscribe to participate to achieving distributed lock
      */
     public LockHandler(String nodeId, String runtimeJsCode, String evaluationJsCode,
                        String kafkaServerAddress, String kafkaTopic) {
-        super(nodeId, runtimeJsCode, evaluationJsCode, kafkaServerAddress, kafkaTopic);
+        super(nodeId, runtimeJsCode + LEASE_JS_CODE, evaluationJsCode, kafkaServerAddress, kafkaTopic);
         this.terminate = false;
+        this.initialJsCode = this.runtimeJsCode;
+        this.leaseMillis = Long.getLong("lockLeaseMs", 10000);
+        this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, nodeId + "_LeaseRenewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.recoveryTime = new LatencyRecorder(nodeId + " lock recovery time");
+        this.notifier = new AsyncNotifier(nodeId + "_Notifier");
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.renewalLock = new Object();
+    }
+
+    /**
+     * Records are evaluated on the state of the previous record, so that renewals are not replayed
+     *
+     * @return true
+     */
+    @Override
+    public boolean isEvaluationIncremental() {
+        return true;
+    }
+
+    /**
+     * Add a listener of the lock of this LockHandler
+     *
+     * @param listener listener to notify
+     */
+    public void addListener(LockListener listener){
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Remove a listener of the lock of this LockHandler
+     *
+     * @param listener listener to remove
+     */
+    public void removeListener(LockListener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set the executor running the listeners, a shared pool of daemon threads by default
+     *
+     * @param executor executor to run the listeners
+     */
+    public void setNotificationExecutor(Executor executor){
+        notifier.setExecutor(executor);
+    }
+
+    /**
+     * Get whether this LockHandler holds the lock
+     *
+     * @return whether this LockHandler holds the lock
+     */
+    public boolean isHolding() {
+        return holding;
     }
 
     /**
@@ -44,42 +171,217 @@ public class LockHandler extends ConsensusApplication {
 
     /**
      * Action taken after acquiring lock
+     * Notifies the listeners without blocking the consumer thread
+     * Called for the record which moves this waiting LockHandler to the head of the queue, and not again for the
+     * following records while it holds the lock
      *
      * @param value Whether this LockHandler acquired the lock or not
      */
     @Override
     public void onConsensus(Value value) {
-        for (int i=0; i<10; i++){
-            LOGGER.info(nodeId + " is holding lock.");
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        this.waiting = false;
+        this.holding = true;
+        this.recordRecovery();
+        LOGGER.info(nodeId + " is holding lock.");
+        final String token = this.leaseToken;
+        this.notifyListeners(listener -> listener.onLockAcquired(token));
+    }
+
+    /**
+     * Action taken after the lease of the held lock expired and another node removed this LockHandler from the queue
+     */
+    private void onLockLost(){
+        this.holding = false;
+        this.stopLeaseRenewal();
+        LOGGER.warn(nodeId + " lost the lock, its lease expired");
+        final String token = this.leaseToken;
+        this.notifyListeners(listener -> listener.onLockLost(token));
+    }
+
+    private void notifyListeners(Consumer<LockListener> notification){
+        if (!listeners.isEmpty()){
+            notifier.send(() -> listeners.forEach(notification));
+        }
+    }
+
+    /**
+     * Release the held lock, or leave the lock queue if the lock is not acquired yet
+     */
+    public void release(){
+        if (!holding && !waiting){
+            return;
+        }
+        this.holding = false;
+        this.waiting = false;
+        this.stopLeaseRenewal();
+        this.distributedConsensus.writeACommand(lockKey(nodeId, leaseToken), "release(\"" + nodeId + "\",\"" +
+                leaseToken + "\");");
+        this.writeTombstones(nodeId, leaseToken);
+    }
+
+    private static String lockKey(String client, String token){
+        return "lock/" + client + "/" + token;
+    }
+
+    private static String leaseKey(String client, String token){
+        return "lease/" + client + "/" + token;
+    }
+
+    /**
+     * Let log compaction remove the records of a released or expired acquisition
+     *
+     * @param client id of the node which acquired
+     * @param token token of the acquisition
+     */
+    private void writeTombstones(String client, String token){
+        this.distributedConsensus.writeATombstone(lockKey(client, token));
+        this.distributedConsensus.writeATombstone(leaseKey(client, token));
+    }
+
+    /**
+     * Join the lock queue with a lease of -DlockLeaseMs (default 10000) and renew it every lease/3 until the
+     * lock is released
+     */
+    public void acquire(){
+        if (holding || waiting){
+            throw new IllegalStateException(nodeId + " already acquired the lock");
+        }
+        final String token = UUID.randomUUID().toString();
+        this.leaseToken = token;
+        this.waiting = true;
+        this.distributedConsensus.writeACommand(lockKey(nodeId, token), "addWithLease(\"" + nodeId + "\"," +
+                leaseMillis + ",\"" + token + "\");");
+        long renewInterval = Math.max(1, leaseMillis / 3);
+        synchronized (renewalLock){
+            this.renewedToken = token;
+            //WAITERS RENEW TOO, SO THAT LOG TIME ADVANCES AND A CRASHED HOLDER EXPIRES EVEN IF NOTHING ELSE IS WRITTEN
+            this.leaseRenewal = leaseRenewer.scheduleAtFixedRate(() -> this.renewLease(token),
+                    renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write a renew record, unless the lease of the token is not renewed anymore
+     *
+     * @param token token of the acquisition
+     */
+    private void renewLease(String token){
+        synchronized (renewalLock){
+            if (token.equals(renewedToken)){
+                this.distributedConsensus.writeACommand(leaseKey(nodeId, token), "renew(\"" + nodeId + "\",\"" +
+                        token + "\");");
+            }
+        }
+    }
+
+    private void stopLeaseRenewal(){
+        synchronized (renewalLock){
+            //A RENEWAL WHICH IS RUNNING HOLDS renewalLock, SO NO RENEWAL FOLLOWS THE TOMBSTONE OF THE LEASE
+            this.renewedToken = null;
+            if (leaseRenewal != null){
+                leaseRenewal.cancel(false);
+                this.leaseRenewal = null;
             }
         }
-        this.distributedConsensus.writeACommand("lockStatuses.delete(\""+ nodeId + "\"" + ");");
-        this.setTerminate(true);
+    }
+
+    /**
+     * Write an expire record if the lease of the holder expired at the latest evaluated record
+     * Only done while the records are fresh, so that replaying an old part of the log does not expire holders
+     *
+     * @param latestRecordTimestamp Kafka timestamp of the latest evaluated record
+     */
+    private void expireHolder(long latestRecordTimestamp){
+        if (!waiting || System.currentTimeMillis() - latestRecordTimestamp > leaseMillis){
+            return;
+        }
+        Value expiredLease = this.distributedConsensus.queryJsCode("expiredLease();");
+        if (expiredLease == null || expiredLease.isNull()){
+            return;
+        }
+        String[] clientAndToken = expiredLease.asString().split(",", 2);
+        if (clientAndToken[0].equals(nodeId) || clientAndToken[1].equals(lastExpiredToken)){
+            return;
+        }
+        this.lastExpiredToken = clientAndToken[1];
+        LOGGER.info(nodeId + " :: lease of " + clientAndToken[0] + " expired");
+        //THE EXPIRE RECORD SUPERSEDES THE ADD RECORD OF THE SAME KEY, SO COMPACTION KEEPS THE QUEUE CONSISTENT
+        this.distributedConsensus.writeACommand(lockKey(clientAndToken[0], clientAndToken[1]), "expire(\"" +
+                clientAndToken[0] + "\",\"" + clientAndToken[1] + "\");");
+        this.writeTombstones(clientAndToken[0], clientAndToken[1]);
+    }
+
+    /**
+     * Record time from the last renewal of a crashed holder until this node got the lock, if this node got the
+     * lock because the lease of the holder expired
+     */
+    private void recordRecovery(){
+        Value expiredLease = this.distributedConsensus.queryJsCode("lastExpiredLease !== null && " +
+                "lastExpiredLease.successor === \"" + nodeId + "\" ? lastExpiredLease : null;");
+        if (expiredLease != null && !expiredLease.isNull()){
+            long lastRenewal = expiredLease.getMember("lastRenewal").asLong();
+            long expiredAt = expiredLease.getMember("expiredAt").asLong();
+            recoveryTime.record(System.currentTimeMillis() - lastRenewal);
+            LOGGER.info(nodeId + " got the lock after the lease of " + expiredLease.getMember("client").asString() +
+                    " expired; " + (expiredAt - lastRenewal) + "ms from its last renewal to expiry, " +
+                    (System.currentTimeMillis() - lastRenewal) + "ms to acquisition");
+            LOGGER.info(recoveryTime.summary());
+        }
     }
 
     /**
      * Read and evaluate Kafka records in a separate thread
      */
     public void start(){
+        String restoredState = this.distributedConsensus.getRestoredState();
+        if (restoredState != null){
+            //LOCK RECORDS UP TO THE CHECKPOINTED OFFSETS
+            this.setRuntimeJsCode(initialJsCode + restoredState);
+            LOGGER.info(nodeId + " restored lock records from checkpoint");
+        }
         Runnable consuming = () -> {
             try {
                 while (!terminate) {
                     ConsumerRecords<String, String> records = this.distributedConsensus.getMessages();
+                    //EVALUATE THE BATCH ON THE EVALUATION SHARD OF THE NODE, THEN FOLLOW THE RESULTS IN ORDER
+                    List<CompletableFuture<Boolean>> evaluations = new ArrayList<>();
+                    long latestRecordTimestamp = -1;
                     for (ConsumerRecord<String, String> record : records) {
-                        Value result = this.distributedConsensus.evaluateJsCode(record.value());
-                        boolean consensusAchieved = this.checkConsensus(result);
-                        if (consensusAchieved) {
-                            this.onConsensus(result);
+                        if (record.value() == null){
+                            //TOMBSTONES ONLY EXIST FOR LOG COMPACTION
+                            continue;
                         }
+                        latestRecordTimestamp = record.timestamp();
+                        //RECORDS ARE EVALUATED AT THEIR KAFKA TIMESTAMP TO EXPIRE LEASES DETERMINISTICALLY
+                        evaluations.add(this.distributedConsensus.evaluateJsCodeAsync(
+                                "tick(" + record.timestamp() + ");" + record.value() + "checkLease();",
+                                record.timestamp(),
+                                result -> result == null ? null : this.checkConsensus(result)));
                     }
+                    for (CompletableFuture<Boolean> evaluation : evaluations){
+                        Boolean acquired = evaluation.join();
+                        if (acquired == null){
+                            //QUARANTINED RECORD DOES NOT CHANGE THE QUEUE
+                            continue;
+                        }
+                        if (acquired && waiting){
+                            this.onConsensus(null);
+                        }
+                        else if (!acquired && holding){
+                            this.onLockLost();
+                        }
+                    }
+                    if (!holding && latestRecordTimestamp >= 0){
+                        this.expireHolder(latestRecordTimestamp);
+                    }
+                    this.distributedConsensus.compactRuntimeJsCode(initialJsCode, "snapshot();");
+                    this.distributedConsensus.checkpoint(runtimeJsCode.substring(initialJsCode.length()), false);
                 }
             } catch(Exception exception) {
                 LOGGER.error("Exception occurred :", exception);
             }finally {
+                this.stopLeaseRenewal();
+                leaseRenewer.shutdownNow();
                 this.distributedConsensus.closeConsumer();
             }
         };
@@ -97,19 +399,38 @@ public class LockHandler extends ConsensusApplication {
 
     /**
      * Instantiate the LockHandler and participate to consensus process
-     * @param args Kafka server location and Kafka topic
+     * Holds the lock for 20s on the listener thread, then releases it
+     * @param args Kafka server location, Kafka topic and optionally a stable node id to resume from its checkpoint
      */
     public static void main(String[] args){
-        String nodeId = UUID.randomUUID().toString();
+        String nodeId = args.length > 2 ? args[2] : UUID.randomUUID().toString();
         LockHandler lockHandler = new LockHandler(nodeId, "var lockStatuses = new Set([]); result = false;",
                 "console.log(\"queue is :\" + Array.from(lockStatuses));" +
-                        "if(Array.from(lockStatuses)[0] === \"" + nodeId + "\"){" +
-                        "result = true;" +
-                        "}" +
+                        "result = Array.from(lockStatuses)[0] === \"" + nodeId + "\";" +
                         "result;", args[0], args[1]);
 
         LOGGER.info("My id is " + lockHandler.nodeId);
+        lockHandler.addListener(new LockListener() {
+            @Override
+            public void onLockAcquired(String token) {
+                for (int i=0; i<10 && lockHandler.isHolding(); i++){
+                    LOGGER.info(nodeId + " is holding lock.");
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                lockHandler.release();
+                lockHandler.setTerminate(true);
+            }
+
+            @Override
+            public void onLockLost(String token) {
+                lockHandler.setTerminate(true);
+            }
+        });
         lockHandler.start();
-        lockHandler.distributedConsensus.writeACommand("lockStatuses.add(\""+  lockHandler.nodeId + "\"" + ");");
+        lockHandler.acquire();
     }
 }
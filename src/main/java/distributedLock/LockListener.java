@@ -0,0 +1,21 @@
+package distributedLock;
+
+/**
+ * Listener of the distributed lock of a LockHandler
+ * Called on the executor of the LockHandler's notifier, never on its consumer thread
+ */
+public interface LockListener {
+    /**
+     * Called when the LockHandler got the lock
+     *
+     * @param token token of the acquisition holding the lock
+     */
+    void onLockAcquired(String token);
+
+    /**
+     * Called when the LockHandler lost the lock without releasing it, because its lease expired
+     *
+     * @param token token of the acquisition which held the lock
+     */
+    void onLockLost(String token);
+}
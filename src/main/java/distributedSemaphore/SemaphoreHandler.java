@@ -0,0 +1,326 @@
+package distributedSemaphore;
+
+import distributedConsensus.ConsensusApplication;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.log4j.Logger;
+import org.graalvm.polyglot.Value;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Java NODE acquiring permits of a distributed counting semaphore
+ * Waiters are granted permits in FIFO order from a queue with a head index, so that granting is O(1) per
+ * waiter. Held permits and waiting requests are leased: they expire unless the node renews them within the
+ * lease, measured in Kafka record timestamps, so that permits of crashed nodes are not leaked.
+ * Since leases are renewed every lease/3, the records are replaced by a snapshot of the holders and the queue
+ * once they grow beyond -DcompactionThreshold, so that evaluated code and checkpoints do not grow with renewals.
+ * An acquire whose waiting request expires or is rejected fails its future.
+ */
+public class SemaphoreHandler extends ConsensusApplication {
+    private static final Logger LOGGER = Logger.getLogger(SemaphoreHandler.class);
+    private static final String SEMAPHORE_JS_CODE = "var queue = []; var head = 0; var logTime = 0;" +
+            "var holders = Object.create(null); var waiters = Object.create(null);" +
+            "function tick(time){logTime = Math.max(logTime, time);}" +
+            "function expire(){for (var client in holders){if (holders[client].expiry <= logTime){" +
+            "available += holders[client].permits; delete holders[client];}}}" +
+            "function grant(){expire();" +
+            "while (head < queue.length){var waiter = queue[head];" +
+            "if (waiters[waiter.client] !== waiter || waiter.expiry <= logTime){" +
+            "if (waiters[waiter.client] === waiter){delete waiters[waiter.client];} head++; continue;}" +
+            "if (waiter.permits > available){break;}" +
+            "available -= waiter.permits; head++; delete waiters[waiter.client];" +
+            "var holder = holders[waiter.client] || (holders[waiter.client] = {permits: 0});" +
+            "holder.permits += waiter.permits; holder.expiry = logTime + waiter.lease; holder.lease = waiter.lease;}" +
+            "if (head > 1024 && head * 2 > queue.length){queue = queue.slice(head); head = 0;}}" +
+            "function waiting(client){var waiter = waiters[client]; return waiter && waiter.expiry > logTime ? " +
+            "waiter : null;}" +
+            "function acquire(client, permits, lease, request){expire();" +
+            "var held = holders[client] ? holders[client].permits : 0;" +
+            "if (waiting(client) || held + permits > totalPermits){return;}" +
+            "var waiter = {client: client, permits: permits, lease: lease, expiry: logTime + lease," +
+            "request: request};" +
+            "waiters[client] = waiter; queue.push(waiter); grant();}" +
+            "function release(client, permits){var holder = holders[client];" +
+            "if (holder){var released = Math.min(permits, holder.permits); holder.permits -= released;" +
+            "available += released; if (holder.permits === 0){delete holders[client];}} grant();}" +
+            //EXPIRED HOLDERS AND WAITERS ARE NOT RENEWED
+            "function renew(client){expire(); if (holders[client]){holders[client].expiry = logTime + " +
+            "holders[client].lease;} var waiter = waiting(client);" +
+            "if (waiter){waiter.expiry = logTime + waiter.lease;} grant();}" +
+            //SNAPSHOT OF THE STATE, ONLY THE LIVE WAITERS OF THE QUEUE ARE KEPT
+            "function snapshot(){var state = {available: available, logTime: logTime, holders: holders," +
+            "queue: queue.slice(head).filter(function(waiter){return waiters[waiter.client] === waiter;})};" +
+            "return \"restore(JSON.parse(\" + JSON.stringify(JSON.stringify(state)).replace(/\\u2028/g, " +
+            "\"\\\\u2028\").replace(/\\u2029/g, \"\\\\u2029\") + \"));\";}" +
+            "function restore(state){available = state.available; logTime = state.logTime;" +
+            "holders = Object.assign(Object.create(null), state.holders); queue = state.queue; head = 0;" +
+            "waiters = Object.create(null); for (var i = 0; i < queue.length; i++){waiters[queue[i].client] = queue[i];}}";
+
+    /**
+     * Acquire waiting for its permits
+     */
+    private static final class PendingAcquire {
+        private final String requestId;
+        private final CompletableFuture<Integer> future;
+        private boolean queued; //ONLY ACCESSED BY THE CONSUMER THREAD
+
+        private PendingAcquire(String requestId){
+            this.requestId = requestId;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    private volatile boolean terminate;
+    private final String initialJsCode;
+    private final int permits;
+    private final long leaseMillis;
+    private final ScheduledExecutorService leaseRenewer;
+    private final AtomicLong requestCounter;
+    private volatile int heldPermits;
+    private final AtomicReference<PendingAcquire> pendingAcquire;
+
+    /**
+     * Constructor
+     * Every node of the semaphore should be created with the same number of permits
+     *
+     * @param nodeId unique id to identify the SemaphoreHandler
+     * @param permits total number of permits of the semaphore
+     * @param leaseMillis lease of held permits and waiting requests, renewed every leaseMillis/3
+     * @param kafkaServerAddress URL of Kafka server
+     * @param kafkaTopic Kafka topic of the semaphore
+     */
+    public SemaphoreHandler(String nodeId, int permits, long leaseMillis, String kafkaServerAddress,
+                            String kafkaTopic) {
+        super(nodeId, "var totalPermits = " + permits + "; var available = " + permits + ";" + SEMAPHORE_JS_CODE,
+                "({held: holders[\"" + nodeId + "\"] ? holders[\"" + nodeId + "\"].permits : 0, " +
+                "waiting: waiting(\"" + nodeId + "\") ? waiting(\"" + nodeId + "\").request : null});",
+                kafkaServerAddress, kafkaTopic);
+        this.initialJsCode = runtimeJsCode;
+        this.permits = permits;
+        this.leaseMillis = leaseMillis;
+        this.requestCounter = new AtomicLong();
+        this.pendingAcquire = new AtomicReference<>();
+        this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, nodeId + "_LeaseRenewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Records are evaluated on the state of the previous record; evaluationJsCode only reads holders and waiters
+     *
+     * @return true
+     */
+    @Override
+    public boolean isEvaluationIncremental() {
+        return true;
+    }
+
+    /**
+     * Check whether this SemaphoreHandler holds permits
+     *
+     * @param result permits held and waiting request of this node returned by Javascript evaluation
+     * @return whether this SemaphoreHandler holds permits
+     */
+    @Override
+    public boolean checkConsensus(Value result) {
+        return result.getMember("held").asInt() > 0;
+    }
+
+    /**
+     * Complete the pending acquire when its permits are granted
+     *
+     * @param result permits held and waiting request of this node returned by Javascript evaluation
+     */
+    @Override
+    public void onConsensus(Value result) {
+        int held = result.getMember("held").asInt();
+        PendingAcquire acquire = this.pendingAcquire.get();
+        if (acquire != null && held > heldPermits && this.pendingAcquire.compareAndSet(acquire, null)){
+            acquire.future.complete(held);
+            LOGGER.info(nodeId + " is holding " + held + " permits");
+        }
+    }
+
+    /**
+     * Track permits held by this node after evaluating a record, and fail the pending acquire if its request is
+     * rejected or its lease expires before the permits are granted
+     *
+     * @param result permits held and waiting request of this node returned by Javascript evaluation
+     * @param recordKey key of the evaluated record, the request id for acquire records
+     */
+    private void onEvaluating(Value result, String recordKey){
+        int held = result.getMember("held").asInt();
+        Value waiting = result.getMember("waiting");
+        String waitingRequest = waiting.isNull() ? null : waiting.asString();
+        if (this.checkConsensus(result)){
+            this.onConsensus(result);
+        }
+        else if (heldPermits > 0 && pendingAcquire.get() == null){
+            LOGGER.info(nodeId + " no longer holds permits");
+        }
+        PendingAcquire acquire = this.pendingAcquire.get();
+        if (acquire != null && held <= heldPermits){
+            if (acquire.requestId.equals(waitingRequest)){
+                acquire.queued = true;
+            }
+            else if (acquire.queued){
+                //THE WAITER LEFT THE QUEUE WITHOUT ITS PERMITS
+                this.failPendingAcquire(acquire.requestId, "lease of the acquire expired");
+            }
+            else{
+                //THE ACQUIRE RECORD WAS EVALUATED WITHOUT QUEUEING THE REQUEST
+                this.failPendingAcquire(recordKey, "acquire was rejected");
+            }
+        }
+        this.heldPermits = held;
+    }
+
+    /**
+     * Fail the pending acquire if it has the given request id
+     *
+     * @param requestId request id of the failed acquire, the key of its record
+     * @param reason reason of the failure
+     */
+    private void failPendingAcquire(String requestId, String reason){
+        PendingAcquire acquire = this.pendingAcquire.get();
+        if (acquire != null && acquire.requestId.equals(requestId) && this.pendingAcquire.compareAndSet(acquire, null)){
+            acquire.future.completeExceptionally(new IllegalStateException(nodeId + " :: " + reason));
+            LOGGER.warn(nodeId + " :: " + reason + " before the permits were granted");
+        }
+    }
+
+    /**
+     * Request permits, in addition to the permits already held
+     * Only one acquire can wait at a time
+     *
+     * @param count number of permits to acquire
+     * @return future completed with the number of permits held after the permits are granted, or completed
+     * exceptionally if the request is rejected or its lease expires before the permits are granted
+     * @throws IllegalArgumentException if the held permits and count are more than the permits of the semaphore
+     */
+    public CompletableFuture<Integer> acquire(int count){
+        int held = this.heldPermits;
+        if (count <= 0 || held + count > permits){
+            //SUCH AN ACQUIRE COULD NEVER BE GRANTED, THE RECORD IS IGNORED BY acquire IN JAVASCRIPT
+            throw new IllegalArgumentException("Cannot acquire " + count + " more of " + permits + " permits while " +
+                    "holding " + held);
+        }
+        PendingAcquire acquire = new PendingAcquire(nodeId + "-" + requestCounter.incrementAndGet());
+        if (!pendingAcquire.compareAndSet(null, acquire)){
+            throw new IllegalStateException(nodeId + " is already waiting for permits");
+        }
+        //THE REQUEST ID IS THE KEY OF THE RECORD, SO THAT A REJECTED ACQUIRE CAN FAIL ITS FUTURE
+        this.distributedConsensus.writeACommand(acquire.requestId, "acquire(\"" + nodeId + "\"," + count + "," +
+                leaseMillis + ",\"" + acquire.requestId + "\");");
+        return acquire.future;
+    }
+
+    /**
+     * Release held permits
+     *
+     * @param count number of permits to release
+     */
+    public void release(int count){
+        this.distributedConsensus.writeACommand("release(\"" + nodeId + "\"," + count + ");");
+    }
+
+    /**
+     * Renew leases of held permits and of the waiting acquire
+     */
+    private void renewLeases(){
+        if (heldPermits > 0 || pendingAcquire.get() != null){
+            this.distributedConsensus.writeACommand("renew(\"" + nodeId + "\");");
+        }
+    }
+
+    /**
+     * Read and evaluate Kafka records in a separate thread
+     * Every record is evaluated at its Kafka timestamp, so that all nodes expire leases at the same records
+     */
+    public void start(){
+        String restoredState = this.distributedConsensus.getRestoredState();
+        if (restoredState != null){
+            this.setRuntimeJsCode(initialJsCode + restoredState);
+            LOGGER.info(nodeId + " restored semaphore records from checkpoint");
+        }
+        long renewInterval = Math.max(1, leaseMillis / 3);
+        leaseRenewer.scheduleAtFixedRate(this::renewLeases, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        Runnable consuming = () -> {
+            try {
+                while (!terminate) {
+                    ConsumerRecords<String, String> records = this.distributedConsensus.getMessages();
+                    for (ConsumerRecord<String, String> record : records) {
+                        Value result = this.distributedConsensus.evaluateJsCode("tick(" + record.timestamp() + ");" +
+                                record.value(), record.timestamp());
+                        if (result != null) {
+                            this.onEvaluating(result, record.key());
+                        }
+                        else{
+                            this.failPendingAcquire(record.key(), "acquire was quarantined");
+                        }
+                    }
+                    this.distributedConsensus.compactRuntimeJsCode(initialJsCode, "snapshot();");
+                    this.distributedConsensus.checkpoint(runtimeJsCode.substring(initialJsCode.length()), false);
+                }
+            } catch(Exception exception) {
+                LOGGER.error("Exception occurred :", exception);
+            }finally {
+                leaseRenewer.shutdownNow();
+                PendingAcquire acquire = this.pendingAcquire.getAndSet(null);
+                if (acquire != null){
+                    acquire.future.completeExceptionally(new IllegalStateException("SemaphoreHandler " + nodeId +
+                            " is stopped"));
+                }
+                this.distributedConsensus.closeConsumer();
+            }
+        };
+        Thread consumer = new Thread(consuming);
+        consumer.setName(nodeId + "_SemaphoreConsumer");
+        consumer.start();
+    }
+
+    /**
+     * Setting terminate to true will stop the kafkaConsumer and terminate the SemaphoreHandler
+     *
+     * @param terminate whether to terminate or not
+     */
+    public void setTerminate(boolean terminate){
+        this.terminate = terminate;
+    }
+
+    /**
+     * Instantiate a SemaphoreHandler, acquire permits, hold them for 20s and release them
+     *
+     * @param args Kafka server location, Kafka topic, total number of permits, number of permits to acquire,
+     *             optionally a stable node id to resume from its checkpoint
+     */
+    public static void main(String[] args){
+        String nodeId = args.length > 4 ? args[4] : UUID.randomUUID().toString();
+        int count = Integer.parseInt(args[3]);
+        SemaphoreHandler semaphoreHandler = new SemaphoreHandler(nodeId, Integer.parseInt(args[2]),
+                Long.getLong("leaseMs", 10000), args[0], args[1]);
+        LOGGER.info("My id is " + nodeId);
+        semaphoreHandler.start();
+
+        semaphoreHandler.acquire(count).join();
+        for (int i=0; i<10; i++){
+            LOGGER.info(nodeId + " is holding " + count + " permits.");
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        semaphoreHandler.release(count);
+        semaphoreHandler.setTerminate(true);
+    }
+}
@@ -0,0 +1,15 @@
+package keyValueStore;
+
+/**
+ * Listener of changes to a watched key of a KeyValueStore
+ */
+public interface KeyValueListener {
+    /**
+     * Called on the executor of the KeyValueStore's notifier, never on its consumer thread, after a put,
+     * successful cas or delete of the key is applied, in the order the writes are applied
+     *
+     * @param key changed key
+     * @param value new value of the key, with a null value if the key is deleted
+     */
+    void onChange(String key, VersionedValue value);
+}
@@ -0,0 +1,501 @@
+package keyValueStore;
+
+import distributedConsensus.AsyncNotifier;
+import distributedConsensus.ConsensusApplication;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.log4j.Logger;
+import org.graalvm.polyglot.Value;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Java NODE of a replicated key-value store
+ * Writes (put, cas, delete) are Javascript records ordered by the Kafka log and applied by every node, with a
+ * version per key. Reads are served from the local copy of the store after the node has applied the log up
+ * to the end offset observed when the read was issued (read index), without writing to the log. Stale reads
+ * (getStale) are served from the local copy without waiting, and may miss writes of the last -DstaleReadMs.
+ * Changes to watched keys are delivered to KeyValueListeners through an AsyncNotifier.
+ * Writes are evaluated incrementally, and the applied writes are replaced by a snapshot of the store once
+ * they grow beyond -DcompactionThreshold, so that neither writes nor checkpoints grow with the history.
+ */
+public class KeyValueStore extends ConsensusApplication {
+    private static final Logger LOGGER = Logger.getLogger(KeyValueStore.class);
+    private static final String INITIAL_JS_CODE = "var store = Object.create(null); var lastResult = null;" +
+            "function apply(requestId, key, applied, entry){" +
+            "lastResult = {requestId: requestId, key: key, applied: applied, value: entry ? entry.value : null," +
+            "version: entry ? entry.version : 0};}" +
+            "function write(requestId, key, value){" +
+            "var entry = store[key]; store[key] = {value: value, version: entry ? entry.version + 1 : 1};" +
+            "apply(requestId, key, true, store[key]);}" +
+            "function put(requestId, key, value){write(requestId, key, value);}" +
+            "function cas(requestId, key, expectedVersion, value){var entry = store[key];" +
+            "if ((entry ? entry.version : 0) === expectedVersion){write(requestId, key, value);}" +
+            "else{apply(requestId, key, false, entry);}}" +
+            "function del(requestId, key){var entry = store[key];" +
+            "if (entry && entry.value !== null){write(requestId, key, null);}" +
+            "else{apply(requestId, key, false, entry);}}";
+    private static final String EVALUATION_JS_CODE = "lastResult;";
+    //JAVASCRIPT CODE REBUILDING THE STORE, JSON.parse KEEPS KEYS SUCH AS __proto__ AS PLAIN KEYS
+    private static final String SNAPSHOT_JS_CODE = "\"store = Object.assign(Object.create(null), JSON.parse(\" + " +
+            "JSON.stringify(JSON.stringify(store)).replace(/\\u2028/g, \"\\\\u2028\")" +
+            ".replace(/\\u2029/g, \"\\\\u2029\") + \"));\";";
+
+    /**
+     * Outcome of a write applied from the log
+     */
+    private static final class WriteResult {
+        private final boolean applied;
+        private final VersionedValue value;
+
+        private WriteResult(boolean applied, VersionedValue value){
+            this.applied = applied;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Read waiting until the node applies the log up to its read index
+     */
+    private static final class ReadRequest {
+        private final String key;
+        private final CompletableFuture<VersionedValue> future;
+        private Map<Integer, Long> readIndex;
+
+        private ReadRequest(String key){
+            this.key = key;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    private volatile boolean terminate;
+    private final String initialJsCode;
+    private final long staleReadMillis;
+    private final AtomicLong requestCounter;
+    private final Map<String, VersionedValue> values;
+    private final Map<String, CompletableFuture<WriteResult>> pendingWrites;
+    private final Map<String, List<KeyValueListener>> listeners;
+    private final AsyncNotifier notifier;
+    private final Queue<ReadRequest> newReads;
+    private final List<ReadRequest> waitingReads;
+    private Map<Integer, Long> catchUpIndex;
+    private long catchUpIndexTime;
+    private volatile long caughtUpTime;
+
+    /**
+     * Constructor
+     * Stale reads are enabled with -DstaleReadMs=&lt;maximum staleness&gt;
+     *
+     * @param nodeId unique id to identify the KeyValueStore node
+     * @param kafkaServerAddress URL of Kafka server
+     * @param kafkaTopic Kafka topic of the store
+     */
+    public KeyValueStore(String nodeId, String kafkaServerAddress, String kafkaTopic) {
+        super(nodeId, INITIAL_JS_CODE, EVALUATION_JS_CODE, kafkaServerAddress, kafkaTopic);
+        this.initialJsCode = INITIAL_JS_CODE;
+        this.staleReadMillis = Long.getLong("staleReadMs", 0);
+        this.requestCounter = new AtomicLong();
+        this.values = new ConcurrentHashMap<>();
+        this.pendingWrites = new ConcurrentHashMap<>();
+        this.listeners = new ConcurrentHashMap<>();
+        this.notifier = new AsyncNotifier(nodeId + "_Notifier");
+        this.newReads = new ConcurrentLinkedQueue<>();
+        this.waitingReads = new ArrayList<>();
+        this.caughtUpTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Every write sets lastResult, so a write is evaluated on the state left by the previous write
+     *
+     * @return true
+     */
+    @Override
+    public boolean isEvaluationIncremental() {
+        return true;
+    }
+
+    /**
+     * Check whether a write is applied to the store
+     *
+     * @param result Value returned by Javascript evaluation
+     * @return whether the evaluated record is a write
+     */
+    @Override
+    public boolean checkConsensus(Value result) {
+        return !result.isNull();
+    }
+
+    /**
+     * Update the local copy of the store, complete the write if it was issued by this node and notify
+     * listeners of the key
+     *
+     * @param result outcome of the write returned by Javascript evaluation
+     */
+    @Override
+    public void onConsensus(Value result) {
+        String key = result.getMember("key").asString();
+        boolean applied = result.getMember("applied").asBoolean();
+        Value value = result.getMember("value");
+        VersionedValue versionedValue = new VersionedValue(value.isNull() ? null : value.asString(),
+                result.getMember("version").asLong());
+        if (applied){
+            values.put(key, versionedValue);
+            List<KeyValueListener> keyListeners = listeners.get(key);
+            if (keyListeners != null && !keyListeners.isEmpty()){
+                notifier.send(() -> keyListeners.forEach(listener -> listener.onChange(key, versionedValue)));
+            }
+        }
+        CompletableFuture<WriteResult> pendingWrite = pendingWrites.remove(result.getMember("requestId").asString());
+        if (pendingWrite != null){
+            pendingWrite.complete(new WriteResult(applied, versionedValue));
+        }
+    }
+
+    /**
+     * Set the value of a key
+     *
+     * @param key key
+     * @param value value, not null
+     * @return future completed with the new value and version when the write is applied
+     * @throws NullPointerException if the value is null, use delete to remove a key
+     */
+    public CompletableFuture<VersionedValue> put(String key, String value){
+        Objects.requireNonNull(value, "value");
+        return this.write("put", key, value, -1).thenApply(result -> result.value);
+    }
+
+    /**
+     * Set the value of a key if its version is the expected version
+     *
+     * @param key key
+     * @param expectedVersion expected version of the key, 0 to create a key which was never written
+     * @param value value, not null
+     * @return future completed with whether the value is set when the write is applied
+     * @throws NullPointerException if the value is null
+     */
+    public CompletableFuture<Boolean> compareAndSet(String key, long expectedVersion, String value){
+        Objects.requireNonNull(value, "value");
+        return this.write("cas", key, value, expectedVersion).thenApply(result -> result.applied);
+    }
+
+    /**
+     * Delete a key
+     *
+     * @param key key
+     * @return future completed with whether the key existed when the delete is applied
+     */
+    public CompletableFuture<Boolean> delete(String key){
+        return this.write("del", key, null, -1).thenApply(result -> result.applied);
+    }
+
+    private CompletableFuture<WriteResult> write(String operation, String key, String value, long expectedVersion){
+        String requestId = nodeId + "-" + requestCounter.incrementAndGet();
+        CompletableFuture<WriteResult> future = new CompletableFuture<>();
+        StringBuilder command = new StringBuilder(operation).append('(').append(quote(requestId)).append(',')
+                .append(quote(key));
+        if (expectedVersion >= 0){
+            command.append(',').append(expectedVersion);
+        }
+        if (value != null){
+            command.append(',').append(quote(value));
+        }
+        command.append(");");
+        if (command.length() > this.distributedConsensus.getMaxRecordLength()){
+            //EVERY NODE WOULD QUARANTINE THE RECORD
+            future.completeExceptionally(new IllegalArgumentException("Write of " + key + " is longer than " +
+                    this.distributedConsensus.getMaxRecordLength() + " characters"));
+            return future;
+        }
+        pendingWrites.put(requestId, future);
+        //THE REQUEST ID IS THE KEY OF THE RECORD, SO THAT A QUARANTINED WRITE CAN FAIL ITS FUTURE
+        this.distributedConsensus.writeACommand(requestId, command.toString());
+        return future;
+    }
+
+    /**
+     * Fail the pending write of a quarantined record, if it was issued by this node
+     *
+     * @param requestId key of the quarantined record
+     */
+    private void onQuarantined(String requestId){
+        CompletableFuture<WriteResult> pendingWrite = requestId == null ? null : pendingWrites.remove(requestId);
+        if (pendingWrite != null){
+            pendingWrite.completeExceptionally(new IllegalStateException("Write " + requestId +
+                    " was quarantined"));
+        }
+    }
+
+    /**
+     * Linearizable read of a key
+     * Completes after the node applies every record written before the read was issued
+     *
+     * @param key key
+     * @return future completed with the value of the key, with a null value if the key does not exist
+     */
+    public CompletableFuture<VersionedValue> get(String key){
+        ReadRequest readRequest = new ReadRequest(key);
+        newReads.add(readRequest);
+        this.distributedConsensus.wakeup();
+        return readRequest.future;
+    }
+
+    /**
+     * Stale read of a key, NOT linearizable
+     * Reads the local copy of the store if the node applied every record written up to -DstaleReadMs ago,
+     * otherwise reads as get does. The value may miss writes of the last -DstaleReadMs, in exchange the read
+     * does not wait for the log.
+     *
+     * @param key key
+     * @return future completed with the value of the key, with a null value if the key does not exist
+     */
+    public CompletableFuture<VersionedValue> getStale(String key){
+        if (System.currentTimeMillis() - caughtUpTime < staleReadMillis){
+            return CompletableFuture.completedFuture(this.getLocal(key));
+        }
+        return this.get(key);
+    }
+
+    private VersionedValue getLocal(String key){
+        VersionedValue value = values.get(key);
+        return value == null ? new VersionedValue(null, 0) : value;
+    }
+
+    /**
+     * Watch changes to a key
+     *
+     * @param key key to watch
+     * @param listener listener to notify
+     */
+    public void watch(String key, KeyValueListener listener){
+        listeners.computeIfAbsent(key, watchedKey -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Set the executor running the listeners, a shared pool of daemon threads by default
+     *
+     * @param executor executor to run the listeners
+     */
+    public void setNotificationExecutor(Executor executor){
+        notifier.setExecutor(executor);
+    }
+
+    /**
+     * Stop watching changes to a key
+     *
+     * @param key watched key
+     * @param listener listener to remove
+     */
+    public void unwatch(String key, KeyValueListener listener){
+        List<KeyValueListener> keyListeners = listeners.get(key);
+        if (keyListeners != null){
+            keyListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Assign read indexes to new reads, complete reads whose read index is applied and renew the time up to
+     * which the node is known to be caught up, which bounds the staleness of getStale
+     * Called on the consumer thread after applying the records returned by a poll
+     */
+    private void serveReads(){
+        long now = System.currentTimeMillis();
+        boolean renewCatchUp = staleReadMillis > 0 && catchUpIndex == null &&
+                now - caughtUpTime > staleReadMillis / 2;
+        if (!newReads.isEmpty() || renewCatchUp){
+            Map<Integer, Long> endOffsets = this.distributedConsensus.getEndOffsets();
+            if (!endOffsets.isEmpty()){
+                ReadRequest readRequest;
+                while ((readRequest = newReads.poll()) != null){
+                    readRequest.readIndex = endOffsets;
+                    waitingReads.add(readRequest);
+                }
+                if (renewCatchUp){
+                    this.catchUpIndex = endOffsets;
+                    this.catchUpIndexTime = now;
+                }
+            }
+        }
+        Iterator<ReadRequest> readRequests = waitingReads.iterator();
+        while (readRequests.hasNext()){
+            ReadRequest readRequest = readRequests.next();
+            if (this.distributedConsensus.isConsumedUpTo(readRequest.readIndex)){
+                readRequest.future.complete(this.getLocal(readRequest.key));
+                readRequests.remove();
+            }
+        }
+        if (catchUpIndex != null && this.distributedConsensus.isConsumedUpTo(catchUpIndex)){
+            //EVERY RECORD WRITTEN BEFORE catchUpIndexTime IS APPLIED
+            this.caughtUpTime = catchUpIndexTime;
+            this.catchUpIndex = null;
+        }
+    }
+
+    private void restore(){
+        String restoredState = this.distributedConsensus.getRestoredState();
+        if (restoredState == null || restoredState.isEmpty()){
+            return;
+        }
+        this.setRuntimeJsCode(initialJsCode + restoredState);
+        Value store = this.distributedConsensus.queryJsCode("store;");
+        if (store != null){
+            for (String key : store.getMemberKeys()){
+                Value entry = store.getMember(key);
+                Value value = entry.getMember("value");
+                values.put(key, new VersionedValue(value.isNull() ? null : value.asString(),
+                        entry.getMember("version").asLong()));
+            }
+        }
+        LOGGER.info(nodeId + " restored " + values.size() + " keys from checkpoint");
+    }
+
+    /**
+     * Read and apply Kafka records in a separate thread
+     */
+    public void start(){
+        this.restore();
+        Runnable consuming = () -> {
+            try {
+                while (!terminate) {
+                    ConsumerRecords<String, String> records = this.distributedConsensus.getMessages();
+                    for (ConsumerRecord<String, String> record : records) {
+                        Value result = this.distributedConsensus.evaluateJsCode(record.value(), record.timestamp());
+                        if (result == null){
+                            this.onQuarantined(record.key());
+                        }
+                        else if (this.checkConsensus(result)) {
+                            this.onConsensus(result);
+                        }
+                    }
+                    this.serveReads();
+                    this.distributedConsensus.compactRuntimeJsCode(initialJsCode, SNAPSHOT_JS_CODE);
+                    this.distributedConsensus.checkpoint(runtimeJsCode.substring(initialJsCode.length()), false);
+                }
+            } catch(Exception exception) {
+                LOGGER.error("Exception occurred :", exception);
+            }finally {
+                this.distributedConsensus.closeConsumer();
+                IllegalStateException stopped = new IllegalStateException("KeyValueStore " + nodeId + " is stopped");
+                for (CompletableFuture<WriteResult> pendingWrite : pendingWrites.values()){
+                    pendingWrite.completeExceptionally(stopped);
+                }
+                for (ReadRequest readRequest : waitingReads){
+                    readRequest.future.completeExceptionally(stopped);
+                }
+                for (ReadRequest readRequest : newReads){
+                    readRequest.future.completeExceptionally(stopped);
+                }
+            }
+        };
+        Thread consumer = new Thread(consuming);
+        consumer.setName(nodeId + "_KVConsumer");
+        consumer.start();
+    }
+
+    /**
+     * Stop the kafkaConsumer and terminate the KeyValueStore
+     */
+    public void stop(){
+        this.terminate = true;
+        this.distributedConsensus.wakeup();
+    }
+
+    /**
+     * Quote a String as a Javascript string literal
+     *
+     * @param value String to quote
+     * @return Javascript string literal
+     */
+    static String quote(String value){
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++){
+            char character = value.charAt(i);
+            switch (character){
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                default:
+                    if (character < 0x20 || character == '\u2028' || character == '\u2029'){
+                        quoted.append(String.format("\\u%04x", (int) character));
+                    }
+                    else{
+                        quoted.append(character);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Instantiate a KeyValueStore node and run commands read from the standard input :
+     * put key value, cas key expectedVersion value, delete key, get key, stale key, watch key
+     *
+     * @param args Kafka server location, Kafka topic and optionally a stable node id to resume from its checkpoint
+     * @throws IOException if the standard input cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        String nodeId = args.length > 2 ? args[2] : UUID.randomUUID().toString();
+        KeyValueStore keyValueStore = new KeyValueStore(nodeId, args[0], args[1]);
+        keyValueStore.start();
+        LOGGER.info("My id is " + nodeId);
+
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = input.readLine()) != null){
+            String[] command = line.trim().split(" ", 3);
+            try {
+                switch (command[0]){
+                    case "put":
+                        System.out.println(keyValueStore.put(command[1], command[2]).join());
+                        break;
+                    case "cas":
+                        String[] versionAndValue = command[2].split(" ", 2);
+                        System.out.println(keyValueStore.compareAndSet(command[1], Long.parseLong(versionAndValue[0]),
+                                versionAndValue[1]).join());
+                        break;
+                    case "delete":
+                        System.out.println(keyValueStore.delete(command[1]).join());
+                        break;
+                    case "get":
+                        System.out.println(keyValueStore.get(command[1]).join());
+                        break;
+                    case "stale":
+                        System.out.println(keyValueStore.getStale(command[1]).join());
+                        break;
+                    case "watch":
+                        keyValueStore.watch(command[1], (key, value) -> System.out.println(key + " -> " + value));
+                        break;
+                    default:
+                        System.out.println("Unknown command : " + command[0]);
+                }
+            } catch (RuntimeException exception) {
+                System.out.println("Failed : " + exception.getMessage());
+            }
+        }
+        keyValueStore.stop();
+    }
+}
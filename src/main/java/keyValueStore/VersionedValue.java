@@ -0,0 +1,53 @@
+package keyValueStore;
+
+/**
+ * Value of a key in the KeyValueStore together with its version
+ * Version of a key is incremented by every put and delete of the key, and is 0 if the key was never written
+ */
+public final class VersionedValue {
+    private final String value;
+    private final long version;
+
+    /**
+     * Constructor
+     *
+     * @param value value of the key, null if the key does not exist
+     * @param version version of the key
+     */
+    public VersionedValue(String value, long version){
+        this.value = value;
+        this.version = version;
+    }
+
+    /**
+     * Get value
+     *
+     * @return value of the key, null if the key does not exist
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get version
+     *
+     * @return version of the key
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get whether the key exists
+     *
+     * @return whether the key has a value
+     */
+    public boolean exists() {
+        return value != null;
+    }
+
+    @Override
+    public String toString() {
+        return value + "@" + version;
+    }
+}
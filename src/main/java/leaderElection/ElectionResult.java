@@ -0,0 +1,78 @@
+package leaderElection;
+
+import org.graalvm.polyglot.Value;
+
+/**
+ * Result of evaluating the records of an election round, read from Javascript with a single host-guest crossing
+ * PROJECTION_JS_CODE packs the result object into a string, "consensus,firstCandidate,leader", where consensus is
+ * 1 or 0 and missing ids are empty. Node ids are compared in place in the packed string, and only the leader is
+ * copied out, once a leader is elected.
+ */
+public final class ElectionResult {
+    /**
+     * Javascript appended to evaluationJsCode, which packs the result object into the completion value
+     * Starts with an empty statement, in case evaluationJsCode does not end with a semicolon
+     */
+    public static final String PROJECTION_JS_CODE = ";(result.consensus ? \"1,\" : \"0,\") + " +
+            "(result.firstCandidate == null ? \"\" : result.firstCandidate) + \",\" + " +
+            "(result.value == null ? \"\" : result.value);";
+    private static final int FIRST_CANDIDATE_OFFSET = 2;
+
+    private final String packed;
+    private final int leaderOffset;
+
+    private ElectionResult(String packed){
+        this.packed = packed;
+        this.leaderOffset = packed.indexOf(',', FIRST_CANDIDATE_OFFSET) + 1;
+    }
+
+    /**
+     * Read the packed result of an evaluation ending with PROJECTION_JS_CODE
+     *
+     * @param result Javascript evaluation result, null if the record was quarantined
+     * @return ElectionResult, null if result is null
+     */
+    public static ElectionResult of(Value result){
+        return result == null ? null : new ElectionResult(result.asString());
+    }
+
+    /**
+     * Get whether a leader is elected
+     *
+     * @return whether a leader is elected
+     */
+    public boolean isConsensus() {
+        return packed.charAt(0) == '1';
+    }
+
+    /**
+     * Check whether a node is the first candidate of the round, without copying the id of the first candidate
+     *
+     * @param nodeId id of the node
+     * @return whether nodeId wrote the first vote of the round
+     */
+    public boolean isFirstCandidate(String nodeId) {
+        return leaderOffset - 1 - FIRST_CANDIDATE_OFFSET == nodeId.length() &&
+                packed.regionMatches(FIRST_CANDIDATE_OFFSET, nodeId, 0, nodeId.length());
+    }
+
+    /**
+     * Check whether a node is the elected leader, without copying the id of the leader
+     *
+     * @param nodeId id of the node
+     * @return whether nodeId is the leader
+     */
+    public boolean isLeader(String nodeId) {
+        return packed.length() - leaderOffset == nodeId.length() &&
+                packed.regionMatches(leaderOffset, nodeId, 0, nodeId.length());
+    }
+
+    /**
+     * Get leader
+     *
+     * @return id of the elected leader, null if no leader is elected
+     */
+    public String getLeader() {
+        return packed.length() == leaderOffset ? null : packed.substring(leaderOffset);
+    }
+}
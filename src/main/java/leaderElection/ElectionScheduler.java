@@ -0,0 +1,119 @@
+package leaderElection;
+
+/**
+ * Clock and threads of a LeaderCandidate
+ * LeaderCandidates sleep, wait, start, interrupt and join their threads only through their ElectionScheduler, so
+ * that ElectionSimulator can run them on a virtual clock. SYSTEM uses the system clock and Java threads.
+ */
+public interface ElectionScheduler {
+    ElectionScheduler SYSTEM = new ElectionScheduler() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+
+        @Override
+        public void await(Object monitor, long timeoutMillis) throws InterruptedException {
+            monitor.wait(timeoutMillis);
+        }
+
+        @Override
+        public void signalAll(Object monitor) {
+            monitor.notifyAll();
+        }
+
+        @Override
+        public Thread start(Runnable task, String name, boolean daemon) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(daemon);
+            thread.start();
+            return thread;
+        }
+
+        @Override
+        public void interrupt(Thread thread) {
+            thread.interrupt();
+        }
+
+        @Override
+        public void join(Thread thread) throws InterruptedException {
+            thread.join();
+        }
+
+        @Override
+        public boolean isAlive(Thread thread) {
+            return thread.isAlive();
+        }
+    };
+
+    /**
+     * Get the current time
+     *
+     * @return current time in milliseconds
+     */
+    long currentTimeMillis();
+
+    /**
+     * Sleep the calling thread
+     *
+     * @param millis time to sleep in milliseconds
+     * @throws InterruptedException if the thread is interrupted
+     */
+    void sleep(long millis) throws InterruptedException;
+
+    /**
+     * Wait until the monitor is signalled, the thread is interrupted or the timeout passes, as Object.wait does
+     * Should be called holding the monitor
+     *
+     * @param monitor monitor to wait on
+     * @param timeoutMillis maximum time to wait in milliseconds, 0 to wait until signalled or interrupted
+     * @throws InterruptedException if the thread is interrupted
+     */
+    void await(Object monitor, long timeoutMillis) throws InterruptedException;
+
+    /**
+     * Wake up the threads waiting on the monitor, as Object.notifyAll does
+     * Should be called holding the monitor
+     *
+     * @param monitor monitor to signal
+     */
+    void signalAll(Object monitor);
+
+    /**
+     * Start a thread
+     *
+     * @param task task run by the thread
+     * @param name name of the thread
+     * @param daemon whether the thread is a daemon thread
+     * @return started thread
+     */
+    Thread start(Runnable task, String name, boolean daemon);
+
+    /**
+     * Interrupt a thread started by this scheduler
+     *
+     * @param thread thread to interrupt
+     */
+    void interrupt(Thread thread);
+
+    /**
+     * Wait until a thread started by this scheduler is finished
+     *
+     * @param thread thread to wait for
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    void join(Thread thread) throws InterruptedException;
+
+    /**
+     * Check whether a thread started by this scheduler is running
+     *
+     * @param thread thread to check
+     * @return whether the thread is started and not finished
+     */
+    boolean isAlive(Thread thread);
+}
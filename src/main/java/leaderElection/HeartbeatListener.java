@@ -6,19 +6,24 @@ import org.apache.log4j.Logger;
 /**
  * Class to listen to heartbeats of a elected leader and identify void of heartbeats when a leader
  * is failed and call a new leader
+ * Heartbeats interrupt the listener, which identifies a leader failure after 2s without heartbeats
  */
-public class HeartbeatListener extends Thread {
+public class HeartbeatListener implements Runnable {
+    private static final long HEARTBEAT_TIMEOUT = 2000;
     private LeaderCandidate follower;
-    private boolean lateToTimeout;
+    private final ElectionScheduler scheduler;
+    private volatile boolean lateToTimeout;
     private static final Logger LOGGER = Logger.getLogger(LeaderCandidate.class);
 
     /**
      * Constructor
      *
      * @param follower LeaderCandidate which become a follower or joined when there is a FINISHED round in the Kafka log
+     * @param scheduler scheduler of the follower
      */
-    public HeartbeatListener(LeaderCandidate follower){
+    public HeartbeatListener(LeaderCandidate follower, ElectionScheduler scheduler){
         this.follower = follower;
+        this.scheduler = scheduler;
         this.lateToTimeout = false;
     }
 
@@ -30,30 +35,33 @@ public class HeartbeatListener extends Thread {
      * Run method of HeartbeatListener
      */
     public void run() {
-        int i = 0;
-        while(i<=200 && !follower.isTerminate()){
-            if (i == 200){
-                LOGGER.info("Identified leader FAILURE");
-                follower.setElectedLeader(null);
-                follower.participateToNewRound();
+        while(!follower.isTerminate()){
+            try {
+                scheduler.sleep(HEARTBEAT_TIMEOUT);
+            } catch (InterruptedException e) {
+                if (lateToTimeout){
+                    lateToTimeout = false;
+                    LOGGER.info("Got a higher round number(N) Kafka record, Late to timeout, " +
+                            "will evaluate records of round N without writing the vote");
+                    break;
+                }
+                //GOT A HEARTBEAT, LISTEN AGAIN
+                continue;
+            }
+            if (follower.isTerminate()){
                 break;
             }
-            else{
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    if (lateToTimeout){
-                        lateToTimeout = false;
-                        LOGGER.info("Got a higher round number(N) Kafka record, Late to timeout, " +
-                                "will evaluate records of round N without writing the vote");
-                        break;
-                    }
-                    else{
-                        i = 0;
-                    }
-                }
+            LOGGER.info("Identified leader FAILURE");
+            LeaderCandidate.preVoteOutcomes outcome = follower.preVote();
+            if (outcome == LeaderCandidate.preVoteOutcomes.LEADER_ALIVE){
+                //ONLY THIS NODE MISSED HEARTBEATS, KEEP LISTENING
+                continue;
+            }
+            if (outcome == LeaderCandidate.preVoteOutcomes.ELECT){
+                follower.setElectedLeader(null);
+                follower.participateToNewRound();
             }
-            i++;
+            break;
         }
     }
 }
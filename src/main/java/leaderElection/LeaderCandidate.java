@@ -1,15 +1,41 @@
 package leaderElection;
 
+import distributedConsensus.AsyncNotifier;
 import distributedConsensus.ConsensusApplication;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.Producer;
 import org.graalvm.polyglot.Value;
 import org.apache.log4j.Logger;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
 /**
  * Java node participating to leader election
  * Can become a leader or a follower
+ * The leader sends heartbeats from a separate thread and keeps consuming, so that it notices when a new round
+ * starts and steps down. Leadership changes are delivered to LeadershipListeners through an AsyncNotifier.
+ * A candidate does not vote if a vote with a higher or equal rank is already in the round. After a leader
+ * failure, followers wait (MAX_RANK - rank) * -DvoteBackoffMs (default 2) before voting, so that the highest
+ * ranks vote first and suppress the votes of the others.
+ * Before opening a new round, a follower which misses heartbeats writes a SUSPECT record and waits until
+ * -DpreVoteQuorum (default 2) nodes suspect the leader of the round, so that a single slow or paused follower
+ * does not force a re-election. It gives up if a heartbeat arrives. The quorum is capped by the followers which
+ * wrote vote, SUSPECT or ALIVE records in the current or previous round, so that elections of fewer nodes than
+ * preVoteQuorum still progress. If the quorum is not reached within -DpreVoteTimeoutMs (default 10000, 0 waits
+ * forever) without heartbeats, e.g. because the other followers died with the leader, the node opens a new round.
+ * Threads, sleeps and waits go through an ElectionScheduler, so that ElectionSimulator can run LeaderCandidates
+ * on a simulated log and clock.
  */
 public class LeaderCandidate extends ConsensusApplication implements Runnable{
 
@@ -18,13 +44,44 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
         NEW,
         FINISHED
     }
+
+    enum preVoteOutcomes {
+        ELECT,
+        LEADER_ALIVE,
+        ROUND_STARTED
+    }
     private static final Logger LOGGER = Logger.getLogger(LeaderCandidate.class);
+    private static final int MAX_RANK = 100;
+    private static final String ALIVE_PREFIX = "ALIVE,";
     private roundStatuses joiningState;
-    private boolean timeoutCounted, terminate;
+    private boolean timeoutCounted;
+    private volatile boolean terminate;
     private int roundNumber;
     private HeartbeatListener heartbeatListener;
+    private volatile Thread heartbeatListenerThread;
     private String electedLeader;
     private final String initialJsCode;
+    private final Set<String> previousRoundKeys, latestRoundKeys;
+    private int latestKeyRoundNumber;
+    private final AsyncNotifier notifier;
+    private final List<LeadershipListener> listeners;
+    private volatile boolean leading;
+    private Thread heartbeatSender;
+    private final long voteBackoffMillis;
+    private final ElectionScheduler scheduler;
+    private final Random random;
+    private final Object voteMonitor;
+    private int pendingVoteRank; //GUARDED BY voteMonitor
+    private boolean voteSuppressed; //GUARDED BY voteMonitor
+    private final int preVoteQuorum;
+    private final long preVoteTimeoutMillis;
+    private final Object preVoteMonitor;
+    private final Set<String> suspects; //NODES SUSPECTING THE LEADER OF THE CURRENT ROUND, GUARDED BY preVoteMonitor
+    //LATEST ROUND OF THE VOTE, SUSPECT AND ALIVE RECORDS OF EVERY NODE, GUARDED BY preVoteMonitor
+    private final Map<String, Integer> memberRounds;
+    private String heartbeatLeader; //WRITER OF THE LATEST ALIVE RECORD, GUARDED BY preVoteMonitor
+    private int abandonedPreVoteRound;
+    private long heartbeatCount;
 
     /**
      * Constructor
@@ -37,7 +94,38 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      */
     public LeaderCandidate(String nodeId, String runtimeJsCode, String evaluationJsCode, String
             kafkaServerAddress, String kafkaTopic) {
-        super(nodeId, runtimeJsCode, evaluationJsCode, kafkaServerAddress, kafkaTopic);
+        this(nodeId, runtimeJsCode, evaluationJsCode, kafkaServerAddress, kafkaTopic, null, null,
+                ElectionScheduler.SYSTEM, new Random());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nodeId unique id to identify the LeaderCandidate node(thread)
+     * @param runtimeJsCode Javascript code in Java runtime which is updated upon processing a new Javascript command
+     * @param evaluationJsCode Javascript logic to evaluate and elect a leader
+     * @param consumer consumer assigned to kafkaTopic
+     * @param producer producer to kafkaTopic
+     * @param kafkaTopic Kafka topic to participate to leader election
+     * @param scheduler clock and threads of the LeaderCandidate
+     * @param random source of ranks and CHECK records
+     */
+    public LeaderCandidate(String nodeId, String runtimeJsCode, String evaluationJsCode,
+                           org.apache.kafka.clients.consumer.Consumer<String, String> consumer,
+                           Producer<String, String> producer, String kafkaTopic, ElectionScheduler scheduler,
+                           Random random) {
+        this(nodeId, runtimeJsCode, evaluationJsCode, null, kafkaTopic, Objects.requireNonNull(consumer),
+                Objects.requireNonNull(producer), scheduler, random);
+    }
+
+    private LeaderCandidate(String nodeId, String runtimeJsCode, String evaluationJsCode, String kafkaServerAddress,
+                            String kafkaTopic, org.apache.kafka.clients.consumer.Consumer<String, String> consumer,
+                            Producer<String, String> producer, ElectionScheduler scheduler, Random random) {
+        super(nodeId, runtimeJsCode, evaluationJsCode + ElectionResult.PROJECTION_JS_CODE, kafkaServerAddress,
+                kafkaTopic, consumer, producer);
+        this.scheduler = Objects.requireNonNull(scheduler);
+        this.random = Objects.requireNonNull(random);
+        this.voteMonitor = new Object();
         this.initialJsCode = runtimeJsCode;
         this.heartbeatListener = null;
         this.electedLeader = null;
@@ -45,6 +133,75 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
         // TIMEOUT AND CLOSE THE VOTING BY WRITING JAVASCRIPT COMMAND TO KAFKA
         this.joiningState = null; //STATE OF THE ROUND WHEN NODE PARTICIPATED;
         this.terminate = false;
+        this.previousRoundKeys = new HashSet<>(); //KEYS OF RECORDS OF OLDER ROUNDS, TOMBSTONED BY THE NEXT LEADER
+        this.latestRoundKeys = new HashSet<>();
+        this.latestKeyRoundNumber = -1;
+        this.notifier = new AsyncNotifier(nodeId + "_Notifier");
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.voteBackoffMillis = Long.getLong("voteBackoffMs", 2);
+        this.preVoteQuorum = Integer.getInteger("preVoteQuorum", 2);
+        this.preVoteTimeoutMillis = Long.getLong("preVoteTimeoutMs", 10000);
+        this.preVoteMonitor = new Object();
+        this.suspects = new HashSet<>();
+        this.memberRounds = new HashMap<>();
+        this.abandonedPreVoteRound = -1;
+    }
+
+    /**
+     * Records are evaluated on the state of the previous record; evaluationJsCode of leader election only reads
+     * nodeRanks and result
+     *
+     * @return true
+     */
+    @Override
+    public boolean isEvaluationIncremental() {
+        return true;
+    }
+
+    private int drawRank(){
+        return 1 + random.nextInt(MAX_RANK);
+    }
+
+    /**
+     * Add a listener of the leadership of this LeaderCandidate
+     *
+     * @param listener listener to notify
+     */
+    public void addListener(LeadershipListener listener){
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Remove a listener of the leadership of this LeaderCandidate
+     *
+     * @param listener listener to remove
+     */
+    public void removeListener(LeadershipListener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set the executor running the listeners, a shared pool of daemon threads by default
+     *
+     * @param executor executor to run the listeners
+     */
+    public void setNotificationExecutor(Executor executor){
+        notifier.setExecutor(executor);
+    }
+
+    /**
+     * Get whether this LeaderCandidate is the leader and sending heartbeats
+     *
+     * @return whether this LeaderCandidate is the leader
+     */
+    public boolean isLeading() {
+        return leading;
+    }
+
+    private void notifyListeners(Consumer<LeadershipListener> notification){
+        if (!listeners.isEmpty()){
+            notifier.send(() -> listeners.forEach(notification));
+        }
     }
 
     /**
@@ -63,6 +220,13 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      */
     public void setTerminate(boolean terminate) {
         this.terminate = terminate;
+        synchronized (preVoteMonitor){
+            scheduler.signalAll(preVoteMonitor);
+        }
+        Thread listenerThread = this.heartbeatListenerThread;
+        if (terminate && listenerThread != null){
+            scheduler.interrupt(listenerThread);
+        }
     }
 
     /**
@@ -82,24 +246,28 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      * @param lastRoundJsCodes code segment of round with (round number = lastRoundNumber) identified
      */
     public void participate(int lastRoundNumber, String lastRoundJsCodes) {
-        int nodeRank = (int)(1 + Math.random()*100);
+        int nodeRank = drawRank();
         this.roundNumber = lastRoundNumber;
         runtimeJsCode = initialJsCode;
 
         if (lastRoundJsCodes.equals("")){
             //EMPTY KAFKA LOG
             this.joiningState = roundStatuses.NEW;
-            this.distributedConsensus.writeACommand(this.roundNumber+ ",if(!result.timeout){" +
+            this.distributedConsensus.writeACommand(this.roundNumber + "/vote/" + nodeId,
+                    this.roundNumber+ ",if(!result.timeout){" +
                     "nodeRanks.push({client:\""+ nodeId + "\",rank:" + nodeRank +"});}");
             LOGGER.info("Participated to NEW round :" + roundNumber + "; rank is " + nodeRank);
         }
         else{
             //NON-EMPTY KAFKA LOG
-            Value latestRoundResult = this.distributedConsensus.evaluateJsCode(lastRoundJsCodes);
-            boolean isRoundFinished = this.checkConsensus(latestRoundResult);
+            ElectionResult latestRoundResult = ElectionResult.of(this.distributedConsensus.evaluateJsCode(
+                    lastRoundJsCodes));
+            //A ROUND WITH A QUARANTINED RECORD IS TREATED AS FINISHED, A NEW ROUND STARTS IF THERE IS NO LEADER
+            boolean isRoundFinished = latestRoundResult == null || latestRoundResult.isConsensus();
             if (isRoundFinished){
                 //NON-EMPTY KAFKA LOG WITH FINISHED ROUND
                 this.joiningState = roundStatuses.FINISHED;
+                runtimeJsCode = initialJsCode + lastRoundJsCodes; //KEPT FOR CHECKPOINTS OF THE FINISHED ROUND
                 LOGGER.info("Waiting for HBs of FINISHED round " + roundNumber + "; Or will join to" +
                         " round " + (roundNumber + 1));
                 startHeartbeatListener();
@@ -108,7 +276,15 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
                 //NON-EMPTY KAFKA LOG WITH ONGOING ROUND
                 this.joiningState = roundStatuses.ONGOING;
                 runtimeJsCode = initialJsCode + lastRoundJsCodes;
-                this.distributedConsensus.writeACommand(this.roundNumber + ",if(!result.timeout)" +
+                int maxRank = RoundTracker.parseMaxVoteRank(lastRoundJsCodes);
+                if (nodeRank <= maxRank){
+                    //THIS VOTE CANNOT WIN THE ROUND
+                    LOGGER.info("Joined ONGOING round " + roundNumber + " without voting; rank " + nodeRank +
+                            " is not higher than " + maxRank);
+                    return;
+                }
+                this.distributedConsensus.writeACommand(this.roundNumber + "/vote/" + nodeId,
+                        this.roundNumber + ",if(!result.timeout)" +
                         "{nodeRanks.push({client:\""+ nodeId + "\",rank:" + nodeRank +"});}");
                 LOGGER.info("Participated to ONGOING round :" + roundNumber + "JsCode : " +
                         lastRoundJsCodes + "; rank is " + nodeRank);
@@ -122,25 +298,26 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      * @param result  result of Javascript evaluation
      * @return whether consensus achieved or not
      */
-    public boolean onEvaluating(Value result) {
+    public boolean onEvaluating(ElectionResult result) {
         if(electedLeader == null){
-            if (result.getMember("firstCandidate").toString().equals(nodeId) && !timeoutCounted){
+            if (!timeoutCounted && result.isFirstCandidate(nodeId)){
                 //FIRST CANDIDATE TO WRITE TO PARTICIPATE TO ELECTION WAITS timeout AND WRITE A
                 // COMMAND TO CLOSE VOTE COUNTING
                 long timeout = 500;
                 try {
-                    Thread.sleep(timeout);
+                    scheduler.sleep(timeout);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
                 this.timeoutCounted = true;
-                this.distributedConsensus.writeACommand(this.roundNumber + ",result.timeout = true;");
+                this.distributedConsensus.writeACommand(this.roundNumber + "/timeout",
+                        this.roundNumber + ",result.timeout = true;");
                 LOGGER.info("Waited " + timeout + "ms and wrote \"result.timeout = true;\" to close " +
                         "the vote counting");
                 return false;
             }
             else{
-                return checkConsensus(result);
+                return result.isConsensus();
             }
         }
         else{
@@ -156,10 +333,23 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      */
     @Override
     public void onConsensus(Value value) {
-        this.electedLeader = value.getMember("value").toString();
+        this.onConsensus(ElectionResult.of(value));
+    }
+
+    /**
+     * Action upon electing a leader
+     *
+     * @param result result of Javascript evaluation containing leaders id
+     */
+    public void onConsensus(ElectionResult result) {
+        this.electedLeader = result.getLeader();
         LOGGER.info(nodeId + " :: " + this.electedLeader + " is elected as the leader");
-        if (value.getMember("value").toString().equals(nodeId)) {
+        final int electedRound = this.roundNumber;
+        final String leader = this.electedLeader;
+        this.notifyListeners(listener -> listener.onLeaderChanged(electedRound, leader));
+        if (result.isLeader(nodeId)) {
             this.startHeartbeatSender();
+            this.notifyListeners(listener -> listener.onElected(electedRound));
         }
         else{
             this.startHeartbeatListener();
@@ -170,7 +360,15 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      * Handle a heartbeat
      */
     public void handleHeartbeat() {
-        this.heartbeatListener.interrupt();
+        synchronized (preVoteMonitor){
+            heartbeatCount++;
+            //THE LEADER WAS ALIVE AFTER THESE SUSPICIONS, SO THEY DO NOT COUNT TOWARDS A LATER PRE-VOTE
+            suspects.clear();
+            scheduler.signalAll(preVoteMonitor);
+        }
+        if (this.heartbeatListenerThread != null){
+            scheduler.interrupt(this.heartbeatListenerThread);
+        }
     }
 
     /**
@@ -181,7 +379,7 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      */
     @Override
     public boolean checkConsensus(Value result) {
-        return result.getMember("consensus").asBoolean();
+        return ElectionResult.of(result).isConsensus();
     }
 
     /**
@@ -197,7 +395,7 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
         final String unique_round_key = DigestUtils.sha256Hex(rawString);
         final String checkRecord = "CHECK,"+ unique_round_key;
 
-        this.distributedConsensus.writeACommand(checkRecord);
+        this.distributedConsensus.writeACommand("CHECK/" + unique_round_key, checkRecord);
         LOGGER.info("Started; Id : " + nodeId + "; " + "check message : " + checkRecord);
 
         boolean correctRoundIdentified = false;
@@ -205,17 +403,32 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
         String latestRoundsJsCode = "";
         int latestRoundNumber = 0;
 
+        String restoredState = this.distributedConsensus.getRestoredState();
+        if (restoredState != null && !restoredState.isEmpty()){
+            //RESUME IDENTIFYING THE ROUND FROM THE CHECKPOINT INSTEAD OF THE BEGINNING OF THE LOG
+            String[] stateContent = restoredState.split(",", 2);
+            latestRoundNumber = Integer.parseInt(stateContent[0]);
+            latestRoundsJsCode = stateContent[1];
+            LOGGER.info("Restored round " + latestRoundNumber + " from checkpoint");
+        }
+
         try {
             while (!this.terminate) {
                 ConsumerRecords<String, String> records = this.distributedConsensus.getMessages();
                 for (ConsumerRecord<String, String> record : records) {
                     String command = record.value();
+                    this.trackKey(record);
+                    if (command == null){
+                        //TOMBSTONE WRITTEN FOR LOG COMPACTION
+                        continue;
+                    }
                     if (!correctRoundIdentified){
                         //IDENTIFYING THE ROUND
                         if (command.equals(checkRecord)) {
                             //TAKE DECISION ON ROUND STATUS BASED ON COLLECTED LAST ROUND CODES AND
                             // PARTICIPATE
                             LOGGER.info("Found check record : " + checkRecord);
+                            this.distributedConsensus.writeATombstone("CHECK/" + unique_round_key);
                             this.participate(latestRoundNumber,latestRoundsJsCode);
                             correctRoundIdentified = true;
 
@@ -226,8 +439,9 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
                             String[] recordContent = command.split(",", 2);
                             int recordRoundNumber = Integer.parseInt(recordContent[0]);
                             String recordMessage = recordContent[1]; //ALIVE or clean JS
+                            this.observeMember(recordRoundNumber, recordMessage);
 
-                            if (!recordMessage.startsWith("ALIVE")){
+                            if (!RoundTracker.isSignal(recordMessage)){
                                 if (recordRoundNumber>latestRoundNumber){
                                     //THERE IS A NEW ROUND IN KAFKA
                                     LOGGER.info("Discard " + latestRoundNumber +", since there is a" +
@@ -241,15 +455,22 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
                                 //RECORDS WITH ROUND NUMBERS LESS THAN latestRoundNumber CANNOT BE
                                 // FOUND
                             }
-                            //ALIVE RECORDS ARE NOT ADDED TO THE LATEST ROUND CODE
+                            //ALIVE AND SUSPECT RECORDS ARE NOT ADDED TO THE LATEST ROUND CODE
                         }
                     }
                     else if (!command.startsWith("CHECK,")){
                         String[] recordContent = command.split(",", 2);
                         int recordRoundNumber = Integer.parseInt(recordContent[0]);//Round number
                         // written with the record
-                        String recordMessage = recordContent[1]; //ALIVE,nodeId or clean JS
+                        String recordMessage = recordContent[1]; //ALIVE,nodeId, SUSPECT,nodeId or clean JS
+                        this.observeMember(recordRoundNumber, recordMessage);
 
+                        if (recordMessage.startsWith(RoundTracker.SUSPECT_PREFIX)){
+                            //SUSPICIONS OF OLDER ROUNDS ARE LATE AND IGNORED
+                            this.onSuspicion(recordRoundNumber, recordMessage.substring(
+                                    RoundTracker.SUSPECT_PREFIX.length()));
+                            continue;
+                        }
                         if (this.joiningState == roundStatuses.FINISHED){
                             // NEWLY JOINED NODES WITH FINISHED STATE FIRST EXECUTE THIS
                             if (recordRoundNumber == this.roundNumber){
@@ -260,18 +481,21 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
                             else if(recordRoundNumber == this.roundNumber + 1){
                                 //SOMEONE HAS TIMEOUT BEFORE THIS NODE
                                 LOGGER.info("Got new round message while in FINISHED state");
+                                this.abandonPreVote();
                                 this.heartbeatListener.setLateToTimeout(true);
-                                if (this.heartbeatListener.isAlive()){
+                                if (scheduler.isAlive(this.heartbeatListenerThread)){
                                     //TERMINATE LISTENER STARTED FOR FINISHED, TO MOVE TO NEW ROUND
                                     LOGGER.info("Late to timeout the round " + this.roundNumber);
-                                    this.heartbeatListener.interrupt();
+                                    scheduler.interrupt(this.heartbeatListenerThread);
                                 }
+                                this.suppressVote(recordMessage);
                                 //WAIT UNTIL LISTENER IS FINISHED
-                                this.heartbeatListener.join();
+                                scheduler.join(this.heartbeatListenerThread);
                                 //CLEAN UPON THE FIRST (roundNumber + 1) RECORD
                                 this.cleanRound(recordRoundNumber);
-                                Value result = this.distributedConsensus.evaluateJsCode(recordMessage);
-                                boolean consensusAchieved = this.onEvaluating(result);
+                                ElectionResult result = this.distributedConsensus.evaluateJsCodeAsync(recordMessage,
+                                        record.timestamp(), ElectionResult::of).join();
+                                boolean consensusAchieved = result != null && this.onEvaluating(result);
                                 if (consensusAchieved) {
                                     this.onConsensus(result);
                                 }
@@ -286,17 +510,33 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
                         else{
                             //NON-FINISHED STATE NODES IN ANY ROUND
                             if (recordRoundNumber == roundNumber + 1){
+                                if (this.leading){
+                                    //FOLLOWERS TIMED OUT THIS LEADER
+                                    this.stopHeartbeatSender();
+                                }
                                 //CLEAN ALL ROUND RELATED DATA IN CONSENSUS APPLICATION WHEN THE
                                 // FIRST MESSAGE TO LATEST ROUND COMES
-                                this.heartbeatListener.join();
+                                this.abandonPreVote();
+                                this.suppressVote(recordMessage);
+                                if (this.heartbeatListenerThread != null){
+                                    scheduler.join(this.heartbeatListenerThread);
+                                }
                                 this.cleanRound(recordRoundNumber); //SETS THE ROUND NUMBER TO
                                 // NEW RECORD'S ROUND NUMBERS
                             }
                             if(recordMessage.startsWith("ALIVE")){
+                                if (this.leading && this.roundNumber == recordRoundNumber){
+                                    //OWN HEARTBEAT
+                                    continue;
+                                }
                                 if (this.roundNumber == recordRoundNumber){
                                     this.handleHeartbeat();
                                     LOGGER.info("Got HB");
                                 }
+                                else if (recordRoundNumber < this.roundNumber){
+                                    //HEARTBEATS OF THE OLD LEADER IN FLIGHT WHEN THE NEW ROUND STARTED
+                                    LOGGER.info("Ignored late HB of round " + recordRoundNumber);
+                                }
                                 else{
                                     LOGGER.error(nodeId + " :: Error: ALIVE with wrong round number");
                                     throw new RuntimeException("Error: ALIVE with wrong round number");
@@ -306,8 +546,9 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
                                 if(this.roundNumber == recordRoundNumber){
                                     LOGGER.info("Evaluating records of current round with round number : " +
                                             recordRoundNumber);
-                                    Value result = this.distributedConsensus.evaluateJsCode(recordMessage);
-                                    boolean consensusAchieved = this.onEvaluating(result);
+                                    ElectionResult result = this.distributedConsensus.evaluateJsCodeAsync(
+                                            recordMessage, record.timestamp(), ElectionResult::of).join();
+                                    boolean consensusAchieved = result != null && this.onEvaluating(result);
                                     if (consensusAchieved) {
                                         this.onConsensus(result);
                                     }
@@ -323,29 +564,117 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
                         }
                     }
                 }
+                //CHECKPOINT THE ROUND AT BATCH BOUNDARIES, IN THE FORM COLLECTED BEFORE THE CHECK RECORD
+                this.distributedConsensus.checkpoint(correctRoundIdentified ? this.getRoundState() :
+                        latestRoundNumber + "," + latestRoundsJsCode, false);
             }
         } catch(Exception exception) {
             LOGGER.error("Exception occurred :", exception);
         }finally {
+            this.stopHeartbeatSender();
             this.distributedConsensus.closeConsumer();
         }
     }
 
     /**
-     * If elected as leader, Continuously write heartbeats in 1/100s rate
+     * Serialize the round number and Javascript records of the current round, in the same form as the
+     * latest round collected before the CHECK record
+     *
+     * @return serialized round state
+     */
+    private String getRoundState(){
+        return this.roundNumber + "," + runtimeJsCode.substring(initialJsCode.length());
+    }
+
+    /**
+     * Keep keys of records of the latest round and of older rounds, forget keys of tombstones
+     *
+     * @param record record read from Kafka
+     */
+    private void trackKey(ConsumerRecord<String, String> record){
+        String key = record.key();
+        String command = record.value();
+        if (key == null){
+            return;
+        }
+        if (command == null){
+            previousRoundKeys.remove(key);
+            latestRoundKeys.remove(key);
+            return;
+        }
+        if (command.startsWith("CHECK,")){
+            return;
+        }
+        int recordRoundNumber = Integer.parseInt(command.substring(0, command.indexOf(',')));
+        if (recordRoundNumber > latestKeyRoundNumber){
+            previousRoundKeys.addAll(latestRoundKeys);
+            latestRoundKeys.clear();
+            this.latestKeyRoundNumber = recordRoundNumber;
+        }
+        if (recordRoundNumber == latestKeyRoundNumber){
+            latestRoundKeys.add(key);
+        }
+        else{
+            previousRoundKeys.add(key);
+        }
+    }
+
+    /**
+     * Write tombstones for the records of rounds before the current round, so that log compaction keeps only
+     * the records of the current round
+     */
+    private void tombstonePreviousRounds(){
+        for (String key : previousRoundKeys){
+            this.distributedConsensus.writeATombstone(key);
+        }
+        LOGGER.info("Wrote tombstones for " + previousRoundKeys.size() + " records of previous rounds");
+        previousRoundKeys.clear();
+    }
+
+    /**
+     * If elected as leader, Continuously write heartbeats in 1/100s rate in a separate thread until terminated or
+     * demoted
      */
     public void startHeartbeatSender(){
         LOGGER.info("Started sending HB");
-        while (!this.terminate) {
-            this.distributedConsensus.writeACommand(roundNumber + ",ALIVE,"+ nodeId);
-            LOGGER.info("wrote HB");
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                LOGGER.error("Leader was interrupted while sending HB :: " + java.time.LocalTime.now());
-                e.printStackTrace();
+        this.tombstonePreviousRounds();
+        this.distributedConsensus.setBusyPoll(true);
+        this.leading = true;
+        final int leadingRound = this.roundNumber;
+        Runnable sending = () -> {
+            while (!this.terminate && this.leading) {
+                this.distributedConsensus.writeACommand(leadingRound + "/ALIVE", leadingRound + ",ALIVE,"+ nodeId);
+                LOGGER.info("wrote HB");
+                try {
+                    scheduler.sleep(100);
+                } catch (InterruptedException e) {
+                    if (this.leading){
+                        LOGGER.error("Leader was interrupted while sending HB :: " + java.time.LocalTime.now());
+                    }
+                }
             }
+        };
+        this.heartbeatSender = scheduler.start(sending, nodeId + "_HBSender", true);
+    }
+
+    /**
+     * Stop sending heartbeats and notify the listeners if this LeaderCandidate was the leader
+     */
+    private void stopHeartbeatSender(){
+        if (!this.leading){
+            return;
         }
+        this.leading = false;
+        scheduler.interrupt(this.heartbeatSender);
+        try {
+            //NO HEARTBEAT OF THE OLD ROUND IS WRITTEN AFTER STEPPING DOWN
+            scheduler.join(this.heartbeatSender);
+        } catch (InterruptedException e) {
+            scheduler.interrupt(Thread.currentThread());
+        }
+        final int demotedRound = this.roundNumber;
+        LOGGER.info(nodeId + " :: stepped down as the leader of round " + demotedRound);
+        this.notifyListeners(listener -> listener.onDemoted(demotedRound));
     }
 
     /**
@@ -353,9 +682,9 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
      */
     public void startHeartbeatListener(){
         LOGGER.info("Started HB listener");
-        this.heartbeatListener = new HeartbeatListener(this);
-        this.heartbeatListener.setName(nodeId + "_HBListener");
-        this.heartbeatListener.start();
+        this.distributedConsensus.setBusyPoll(true);
+        this.heartbeatListener = new HeartbeatListener(this, scheduler);
+        this.heartbeatListenerThread = scheduler.start(this.heartbeatListener, nodeId + "_HBListener", false);
     }
 
     /**
@@ -369,20 +698,209 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
         // MESSAGES UNTIL THEY CALL THEIR FIRST startNewRound()
         this.timeoutCounted = false;
         this.electedLeader = null;
-        this.heartbeatListener.setLateToTimeout(false);
+        if (this.heartbeatListener != null){
+            this.heartbeatListener.setLateToTimeout(false);
+        }
+        synchronized (preVoteMonitor){
+            suspects.clear();
+            //NODES WITHOUT RECORDS IN THE PREVIOUS ROUND NO LONGER CAP THE PRE-VOTE QUORUM
+            memberRounds.values().removeIf(memberRound -> memberRound < roundNumber - 1);
+        }
+        this.distributedConsensus.setBusyPoll(false);
+        this.notifyListeners(listener -> listener.onLeaderChanged(roundNumber, null));
         LOGGER.info("Cleaned round attributes of round number " + (roundNumber -1));
     }
 
+    /**
+     * Suspect the leader of the current round after missing its heartbeats, and wait for the pre-vote
+     * Called by the HeartbeatListener
+     *
+     * @return ELECT if the pre-vote quorum suspects the leader or preVoteTimeoutMillis passed without
+     * heartbeats, LEADER_ALIVE if a heartbeat arrived or the node terminates, ROUND_STARTED if another node already
+     * opened the next round
+     */
+    preVoteOutcomes preVote(){
+        if (preVoteQuorum <= 1){
+            return preVoteOutcomes.ELECT;
+        }
+        final int suspectedRound = this.roundNumber;
+        long heartbeats;
+        synchronized (preVoteMonitor){
+            if (abandonedPreVoteRound >= suspectedRound){
+                return preVoteOutcomes.ROUND_STARTED;
+            }
+            heartbeats = heartbeatCount;
+        }
+        this.distributedConsensus.writeACommand(suspectedRound + "/suspect/" + nodeId,
+                suspectedRound + "," + RoundTracker.SUSPECT_PREFIX + nodeId);
+        long deadline = scheduler.currentTimeMillis() + preVoteTimeoutMillis;
+        synchronized (preVoteMonitor){
+            LOGGER.info("Suspected the leader of round " + suspectedRound + ", waiting for " +
+                    this.getPreVoteQuorum() + " suspicions");
+            while (true){
+                if (abandonedPreVoteRound >= suspectedRound){
+                    return preVoteOutcomes.ROUND_STARTED;
+                }
+                if (heartbeatCount != heartbeats){
+                    LOGGER.info("Got HB while suspecting the leader of round " + suspectedRound);
+                    return preVoteOutcomes.LEADER_ALIVE;
+                }
+                if (terminate){
+                    //THE LISTENER STOPS WITHOUT VOTING
+                    return preVoteOutcomes.LEADER_ALIVE;
+                }
+                if (suspects.size() >= this.getPreVoteQuorum()){
+                    return preVoteOutcomes.ELECT;
+                }
+                try {
+                    if (preVoteTimeoutMillis <= 0){
+                        scheduler.await(preVoteMonitor, 0);
+                        continue;
+                    }
+                    long remaining = deadline - scheduler.currentTimeMillis();
+                    if (remaining <= 0){
+                        LOGGER.warn("Only " + suspects.size() + " of " + this.getPreVoteQuorum() + " suspicions " +
+                                "of round " + suspectedRound + " without HBs, opening a new round");
+                        return preVoteOutcomes.ELECT;
+                    }
+                    scheduler.await(preVoteMonitor, remaining);
+                } catch (InterruptedException e) {
+                    //HEARTBEATS INTERRUPT THE LISTENER, CHECKED ABOVE
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of suspicions needed to open a new round, preVoteQuorum capped by the number of followers
+     * which wrote records in the current or previous round, so that a node which only observed itself and the
+     * leader does not wait for the timeout
+     * Should be called holding preVoteMonitor
+     *
+     * @return pre-vote quorum
+     */
+    private int getPreVoteQuorum(){
+        String leader = electedLeader != null ? electedLeader : heartbeatLeader;
+        int followers = 1; //THIS NODE
+        for (Map.Entry<String, Integer> memberRound : memberRounds.entrySet()){
+            String member = memberRound.getKey();
+            if (memberRound.getValue() >= this.roundNumber - 1 && !member.equals(nodeId) && !member.equals(leader)){
+                followers++;
+            }
+        }
+        return Math.max(1, Math.min(preVoteQuorum, followers));
+    }
+
+    /**
+     * Record the round of a vote, SUSPECT or ALIVE record of a member of the election
+     *
+     * @param recordRoundNumber round number of the record
+     * @param recordMessage record without the round number
+     */
+    private void observeMember(int recordRoundNumber, String recordMessage){
+        String member;
+        boolean heartbeat = false;
+        if (recordMessage.startsWith(RoundTracker.SUSPECT_PREFIX)){
+            member = recordMessage.substring(RoundTracker.SUSPECT_PREFIX.length());
+        }
+        else if (recordMessage.startsWith(ALIVE_PREFIX)){
+            member = recordMessage.substring(ALIVE_PREFIX.length());
+            heartbeat = true;
+        }
+        else {
+            member = RoundTracker.parseVoteClient(recordMessage);
+        }
+        if (member == null){
+            return;
+        }
+        synchronized (preVoteMonitor){
+            Integer memberRound = memberRounds.get(member);
+            if (memberRound == null || memberRound < recordRoundNumber){
+                memberRounds.put(member, recordRoundNumber);
+            }
+            if (heartbeat){
+                this.heartbeatLeader = member;
+            }
+        }
+    }
+
+    /**
+     * Count a SUSPECT record of the current round
+     *
+     * @param recordRoundNumber round number of the SUSPECT record
+     * @param suspect id of the node which wrote the record
+     */
+    private void onSuspicion(int recordRoundNumber, String suspect){
+        synchronized (preVoteMonitor){
+            if (recordRoundNumber == this.roundNumber && suspects.add(suspect)){
+                scheduler.signalAll(preVoteMonitor);
+            }
+        }
+    }
+
+    /**
+     * Stop the pre-vote of the current round, the next round is already opened by another node
+     */
+    private void abandonPreVote(){
+        synchronized (preVoteMonitor){
+            this.abandonedPreVoteRound = Math.max(abandonedPreVoteRound, this.roundNumber);
+            scheduler.signalAll(preVoteMonitor);
+        }
+    }
+
     /**
      * Participate to new round
+     * Waits (MAX_RANK - rank) * voteBackoffMillis first, and does not vote if a vote with a higher or equal rank
+     * is read meanwhile
      */
     public void participateToNewRound(){
-        int nodeRank = (int)(1 + Math.random()*100);
-        this.distributedConsensus.writeACommand((roundNumber+1) + ",if(!result.timeout){" +
+        int nodeRank = drawRank();
+        long deadline = scheduler.currentTimeMillis() + (MAX_RANK - nodeRank) * voteBackoffMillis;
+        synchronized (voteMonitor){
+            this.voteSuppressed = false;
+            this.pendingVoteRank = nodeRank;
+            try {
+                while (!voteSuppressed) {
+                    long remaining = deadline - scheduler.currentTimeMillis();
+                    if (remaining <= 0){
+                        break;
+                    }
+                    try {
+                        scheduler.await(voteMonitor, remaining);
+                    } catch (InterruptedException e) {
+                        //LATE HEARTBEATS OF THE FAILED ROUND, KEEP WAITING
+                    }
+                }
+                if (voteSuppressed){
+                    LOGGER.info("Did not vote in new round " + (roundNumber + 1) + "; a vote with a higher " +
+                            "rank than " + nodeRank + " was read first");
+                    return;
+                }
+            } finally {
+                this.pendingVoteRank = 0;
+            }
+        }
+        this.distributedConsensus.writeACommand((roundNumber+1) + "/vote/" + nodeId,
+                (roundNumber+1) + ",if(!result.timeout){" +
                 "nodeRanks.push({client:\""+ nodeId + "\",rank:" + nodeRank +"})};");
         LOGGER.info("Participated to new round "+ (roundNumber + 1) + "; my rank is " + nodeRank);
     }
 
+    /**
+     * Suppress the pending vote of participateToNewRound if the first record of the new round is a vote with a
+     * higher or equal rank
+     *
+     * @param recordMessage first record of the new round, without the round number
+     */
+    private void suppressVote(String recordMessage){
+        synchronized (voteMonitor){
+            if (pendingVoteRank > 0 && RoundTracker.parseVoteRank(recordMessage) >= pendingVoteRank){
+                this.voteSuppressed = true;
+                scheduler.signalAll(voteMonitor);
+            }
+        }
+    }
+
     /**
      * Generate a uniques string
      * @return a unique string
@@ -392,7 +910,7 @@ public class LeaderCandidate extends ConsensusApplication implements Runnable{
         StringBuilder builder = new StringBuilder();
         int rawStringLength = 16;
         while (rawStringLength-- != 0) {
-            int character = (int)(Math.random()*ALPHA_NUMERIC_STRING.length());
+            int character = random.nextInt(ALPHA_NUMERIC_STRING.length());
             builder.append(ALPHA_NUMERIC_STRING.charAt(character));
         }
         return builder.toString();
@@ -0,0 +1,14 @@
+package leaderElection;
+
+/**
+ * Listener of leader changes observed on a leader election topic
+ */
+public interface LeaderChangeListener {
+    /**
+     * Called on the consumer thread of the observer when the leader changes, so should not block
+     *
+     * @param roundNumber round number of the election
+     * @param leader id of the new leader, null while the leader of a new round is not elected yet
+     */
+    void onLeaderChanged(int roundNumber, String leader);
+}
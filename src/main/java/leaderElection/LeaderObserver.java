@@ -0,0 +1,244 @@
+package leaderElection;
+
+import distributedConsensus.ConsumerGenerator;
+import distributedConsensus.ConsumptionProfile;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.log4j.Logger;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only follower of a leader election topic
+ * Tracks the current leader with a RoundTracker, without writing to the log, voting or listening for
+ * heartbeats, so that any number of clients can follow leadership without adding to the cost of elections
+ * The topic is read with assigned partitions instead of a consumer group, so observers do not add group
+ * membership or rebalances either
+ */
+public class LeaderObserver {
+    private static final Logger LOGGER = Logger.getLogger(LeaderObserver.class);
+    private static final long MIN_POLL_MILLIS = 10, MAX_POLL_MILLIS = 500;
+
+    /**
+     * Immutable view of the observed election
+     */
+    public static final class Snapshot {
+        private final int roundNumber;
+        private final String leader;
+        private final long time;
+
+        private Snapshot(int roundNumber, String leader, long time){
+            this.roundNumber = roundNumber;
+            this.leader = leader;
+            this.time = time;
+        }
+
+        /**
+         * Get round number
+         *
+         * @return round number of the latest round, -1 if no round is observed yet
+         */
+        public int getRoundNumber() {
+            return roundNumber;
+        }
+
+        /**
+         * Get leader
+         *
+         * @return id of the leader of the latest round, null if it is not elected yet
+         */
+        public String getLeader() {
+            return leader;
+        }
+
+        /**
+         * Get time of the change
+         *
+         * @return time at which the observer saw the change, in epoch milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+
+    private final String observerId;
+    private final KafkaConsumer<String, String> kafkaConsumer;
+    private final RoundTracker roundTracker;
+    private final List<LeaderChangeListener> listeners;
+    private final Object snapshotMonitor;
+    private volatile Snapshot snapshot;
+    private volatile long lastHeartbeatTime;
+    private volatile boolean terminate;
+
+    /**
+     * Constructor
+     *
+     * @param kafkaServerAddress URL of Kafka server
+     * @param kafkaTopic Kafka topic of the leader election
+     */
+    public LeaderObserver(String kafkaServerAddress, String kafkaTopic){
+        this.observerId = "observer-" + UUID.randomUUID().toString();
+        this.kafkaConsumer = ConsumerGenerator.generateAssignedConsumer(kafkaServerAddress, kafkaTopic,
+                ConsumptionProfile.fromSystemProperty());
+        this.roundTracker = new RoundTracker();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.snapshotMonitor = new Object();
+        this.snapshot = new Snapshot(-1, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the latest observed state of the election, without locking
+     *
+     * @return latest snapshot
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the current leader
+     *
+     * @return id of the leader of the latest round, null if it is not elected yet
+     */
+    public String getLeader() {
+        return snapshot.getLeader();
+    }
+
+    /**
+     * Get whether a heartbeat of the current leader was seen recently
+     *
+     * @param timeoutMillis maximum age of the latest heartbeat
+     * @return whether the leader sent a heartbeat within timeoutMillis
+     */
+    public boolean isLeaderAlive(long timeoutMillis) {
+        return snapshot.getLeader() != null && System.currentTimeMillis() - lastHeartbeatTime <= timeoutMillis;
+    }
+
+    /**
+     * Wait until a leader is elected
+     *
+     * @param timeoutMillis maximum time to wait
+     * @return id of the leader, null if no leader is elected within timeoutMillis
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public String awaitLeader(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (snapshotMonitor){
+            long remaining;
+            while (snapshot.getLeader() == null && (remaining = deadline - System.nanoTime()) > 0){
+                TimeUnit.NANOSECONDS.timedWait(snapshotMonitor, remaining);
+            }
+            return snapshot.getLeader();
+        }
+    }
+
+    /**
+     * Add a listener of leader changes
+     *
+     * @param listener listener to notify
+     */
+    public void addListener(LeaderChangeListener listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener of leader changes
+     *
+     * @param listener listener to remove
+     */
+    public void removeListener(LeaderChangeListener listener){
+        listeners.remove(listener);
+    }
+
+    private void publish(int roundNumber, String leader){
+        Snapshot previous = this.snapshot;
+        if (previous.getRoundNumber() == roundNumber && (leader == null ? previous.getLeader() == null :
+                leader.equals(previous.getLeader()))){
+            return;
+        }
+        synchronized (snapshotMonitor){
+            this.snapshot = new Snapshot(roundNumber, leader, System.currentTimeMillis());
+            snapshotMonitor.notifyAll();
+        }
+        for (LeaderChangeListener listener : listeners){
+            try {
+                listener.onLeaderChanged(roundNumber, leader);
+            } catch (RuntimeException exception) {
+                LOGGER.error("Leader change listener failed :", exception);
+            }
+        }
+    }
+
+    private void observe(String record){
+        switch (roundTracker.onRecord(record)){
+            case NEW_ROUND:
+                this.publish(roundTracker.getRoundNumber(), null);
+                break;
+            case ELECTED:
+                this.publish(roundTracker.getRoundNumber(), roundTracker.getLeader());
+                this.lastHeartbeatTime = System.currentTimeMillis();
+                break;
+            case HEARTBEAT:
+                this.lastHeartbeatTime = System.currentTimeMillis();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Tail the topic in a separate daemon thread
+     */
+    public void start(){
+        Runnable consuming = () -> {
+            long pollMillis = MIN_POLL_MILLIS;
+            try {
+                while (!terminate) {
+                    ConsumerRecords<String, String> records = kafkaConsumer.poll(Duration.ofMillis(pollMillis));
+                    pollMillis = records.isEmpty() ? Math.min(pollMillis * 2, MAX_POLL_MILLIS) : MIN_POLL_MILLIS;
+                    for (ConsumerRecord<String, String> record : records) {
+                        this.observe(record.value());
+                    }
+                }
+            } catch (WakeupException exception) {
+                //CLOSED
+            } catch (Exception exception) {
+                LOGGER.error("Exception occurred :", exception);
+            } finally {
+                kafkaConsumer.close();
+            }
+        };
+        Thread consumer = new Thread(consuming);
+        consumer.setName(observerId);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stop tailing the topic
+     */
+    public void close(){
+        this.terminate = true;
+        kafkaConsumer.wakeup();
+    }
+
+    /**
+     * Print leader changes of a leader election topic
+     *
+     * @param args Kafka server location, Kafka topic
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LeaderObserver leaderObserver = new LeaderObserver(args[0], args[1]);
+        leaderObserver.addListener((roundNumber, leader) -> LOGGER.info("Round " + roundNumber + " : " +
+                (leader == null ? "electing" : leader + " is the leader")));
+        leaderObserver.start();
+        Thread.currentThread().join();
+    }
+}
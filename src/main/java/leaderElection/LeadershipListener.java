@@ -0,0 +1,34 @@
+package leaderElection;
+
+/**
+ * Listener of the leadership of a LeaderCandidate
+ * Called on the executor of the LeaderCandidate's notifier, never on its consumer thread, in the order of the
+ * records which caused the changes
+ */
+public interface LeadershipListener extends LeaderChangeListener {
+    /**
+     * Called when the LeaderCandidate is elected as the leader and started sending heartbeats
+     *
+     * @param roundNumber round number of the election
+     */
+    default void onElected(int roundNumber) {
+    }
+
+    /**
+     * Called when the LeaderCandidate stopped being the leader because a new round started or it was terminated
+     *
+     * @param roundNumber round number of the round the LeaderCandidate was the leader of
+     */
+    default void onDemoted(int roundNumber) {
+    }
+
+    /**
+     * Called when a leader is elected, or a new round started and the leader is not elected yet
+     *
+     * @param roundNumber round number of the election
+     * @param leader id of the new leader, null while the leader of a new round is not elected yet
+     */
+    @Override
+    default void onLeaderChanged(int roundNumber, String leader) {
+    }
+}
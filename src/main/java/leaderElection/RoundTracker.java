@@ -0,0 +1,232 @@
+package leaderElection;
+
+/**
+ * Native, incremental equivalent of evaluating the leader election Javascript of the latest round
+ * Follows the records of a leader election topic one by one in O(1) per record, without keeping or
+ * re-evaluating the Javascript of the round
+ */
+public class RoundTracker {
+
+    /**
+     * Effect of a record on the tracked state
+     */
+    public enum Change {
+        NONE,
+        NEW_ROUND,
+        VOTE,
+        ELECTED,
+        HEARTBEAT
+    }
+
+    public static final String TIMEOUT_RECORD = "result.timeout = true;";
+    public static final String SUSPECT_PREFIX = "SUSPECT,";
+    private static final String CLIENT_PREFIX = "client:\"";
+    private static final String RANK_PREFIX = "rank:";
+
+    private int roundNumber;
+    private String firstCandidate, leader, lastHeartbeatSender;
+    private int maxRank, voteCount;
+    private boolean timeout;
+
+    public RoundTracker(){
+        this.roundNumber = -1;
+    }
+
+    /**
+     * Apply a record read from the leader election topic
+     * Records of rounds older than the tracked round and CHECK records are ignored
+     *
+     * @param record value of the Kafka record
+     * @return effect of the record on the tracked state
+     */
+    public Change onRecord(String record){
+        if (record == null || record.startsWith("CHECK,")){
+            return Change.NONE;
+        }
+        int separator = record.indexOf(',');
+        int recordRoundNumber = Integer.parseInt(record.substring(0, separator));
+        if (recordRoundNumber < roundNumber){
+            return Change.NONE;
+        }
+        if (record.startsWith("ALIVE", separator + 1)){
+            if (recordRoundNumber == roundNumber){
+                this.lastHeartbeatSender = record.substring(separator + 1 + "ALIVE,".length());
+                return Change.HEARTBEAT;
+            }
+            return Change.NONE;
+        }
+        if (record.startsWith(SUSPECT_PREFIX, separator + 1)){
+            return Change.NONE;
+        }
+        Change change = Change.NONE;
+        if (recordRoundNumber > roundNumber){
+            this.startRound(recordRoundNumber);
+            change = Change.NEW_ROUND;
+        }
+        if (record.startsWith(TIMEOUT_RECORD, separator + 1)){
+            if (!timeout){
+                this.timeout = true;
+                return Change.ELECTED;
+            }
+            return change;
+        }
+        if (!timeout){
+            String client = parseVoteClient(record);
+            if (client != null){
+                int rank = parseVoteRank(record);
+                voteCount++;
+                if (firstCandidate == null){
+                    this.firstCandidate = client;
+                }
+                if (rank > maxRank){
+                    this.maxRank = rank;
+                    this.leader = client;
+                }
+                return change == Change.NONE ? Change.VOTE : change;
+            }
+        }
+        return change;
+    }
+
+    private void startRound(int roundNumber){
+        this.roundNumber = roundNumber;
+        this.firstCandidate = null;
+        this.leader = null;
+        this.lastHeartbeatSender = null;
+        this.maxRank = 0;
+        this.voteCount = 0;
+        this.timeout = false;
+    }
+
+    /**
+     * Get tracked round number
+     *
+     * @return highest round number seen, -1 if no round is seen yet
+     */
+    public int getRoundNumber() {
+        return roundNumber;
+    }
+
+    /**
+     * Get first candidate of the tracked round, which closes the vote counting
+     *
+     * @return id of the first candidate, null if there is no vote
+     */
+    public String getFirstCandidate() {
+        return firstCandidate;
+    }
+
+    /**
+     * Get the elected leader of the tracked round
+     *
+     * @return id of the leader, null if the leader is not elected yet
+     */
+    public String getLeader() {
+        return timeout ? leader : null;
+    }
+
+    /**
+     * Get the candidate with the highest rank in the tracked round so far
+     *
+     * @return id of the candidate, null if there is no vote
+     */
+    public String getHighestRankedCandidate() {
+        return leader;
+    }
+
+    /**
+     * Get highest rank voted in the tracked round
+     *
+     * @return highest rank, 0 if there is no vote
+     */
+    public int getMaxRank() {
+        return maxRank;
+    }
+
+    /**
+     * Get number of votes counted in the tracked round
+     *
+     * @return number of votes
+     */
+    public int getVoteCount() {
+        return voteCount;
+    }
+
+    /**
+     * Get whether the vote counting of the tracked round is closed
+     *
+     * @return whether the leader is elected
+     */
+    public boolean isElected() {
+        return timeout;
+    }
+
+    /**
+     * Get the sender of the latest heartbeat of the tracked round
+     *
+     * @return id of the heartbeat sender, null if there is no heartbeat
+     */
+    public String getLastHeartbeatSender() {
+        return lastHeartbeatSender;
+    }
+
+    /**
+     * Check whether a record is a heartbeat or a suspicion of the leader, which are not Javascript
+     *
+     * @param recordMessage record without the round number
+     * @return whether the record is an ALIVE or SUSPECT record
+     */
+    public static boolean isSignal(String recordMessage){
+        return recordMessage.startsWith("ALIVE") || recordMessage.startsWith(SUSPECT_PREFIX);
+    }
+
+    /**
+     * Extract the client of a vote record written by LeaderCandidate
+     *
+     * @param record vote record, with or without the round number
+     * @return client id, null if the record is not a vote
+     */
+    public static String parseVoteClient(String record){
+        int clientStart = record.indexOf(CLIENT_PREFIX);
+        if (clientStart < 0){
+            return null;
+        }
+        clientStart += CLIENT_PREFIX.length();
+        return record.substring(clientStart, record.indexOf('"', clientStart));
+    }
+
+    /**
+     * Extract the rank of a vote record written by LeaderCandidate
+     *
+     * @param record vote record, with or without the round number
+     * @return rank, 0 if the record is not a vote
+     */
+    public static int parseVoteRank(String record){
+        int rankStart = record.lastIndexOf(RANK_PREFIX);
+        if (rankStart < 0){
+            return 0;
+        }
+        rankStart += RANK_PREFIX.length();
+        int rank = 0;
+        for (int i = rankStart; i < record.length() && Character.isDigit(record.charAt(i)); i++){
+            rank = rank * 10 + (record.charAt(i) - '0');
+        }
+        return rank;
+    }
+
+    /**
+     * Extract the highest rank of the vote records of a round
+     *
+     * @param records concatenated records of a round, without the round numbers
+     * @return highest rank, 0 if there is no vote
+     */
+    public static int parseMaxVoteRank(String records){
+        int maxRank = 0;
+        for (int rankStart = records.indexOf(RANK_PREFIX); rankStart >= 0;
+             rankStart = records.indexOf(RANK_PREFIX, rankStart + RANK_PREFIX.length())){
+            maxRank = Math.max(maxRank, parseVoteRank(records.substring(rankStart, Math.min(records.length(),
+                    rankStart + RANK_PREFIX.length() + 10))));
+        }
+        return maxRank;
+    }
+}